@@ -0,0 +1,216 @@
+package vmtranslator;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+/**
+ * Parses a whole .vm file straight from its bytes, with no reader and no String per line.
+ * The file is read into the direct buffer of the thread's ParseArena, which is reused for the next file, and the
+ * channel is closed before the parsing starts. The tokens are interned by the arena.
+ * The files are not memory-mapped: a mapping is only released when its buffer is collected, since unmapping it at a
+ * given point needs the foreign memory API (a preview in JDK 21). The buffer instead grows to the largest file the
+ * thread has read and stays that size.
+ * The pipelined translator parses its lines with parseLine(), so both modes accept the same lines.
+ * Accepts the VM commands the Parser does, and reports a bad line with the same exception and message.
+ */
+public class ArenaParser {
+    private static final ThreadLocal<ParseArena> ARENA = ThreadLocal.withInitial(ParseArena::new);
+    private final File vmFile;
+    private final String fileName;
+    private ByteBuffer bytes; //The file, between read() and parseAll().
+    private final int[] tokenStarts = new int[3];
+    private final int[] tokenEnds = new int[3];
+    /**
+     * @param vmFile the '.vm' file to parse.
+     */
+    public ArenaParser(File vmFile) {
+        this(vmFile, vmFile.getName());
+    }
+    private ArenaParser(File vmFile, String fileName) {
+        this.vmFile = vmFile;
+        this.fileName = fileName;
+    }
+    /**
+     * Gets ready to parse lines that are read somewhere else, with parseLine().
+     *
+     * @param fileName the name of the '.vm' file the lines come from.
+     * @return a parser without a file of its own.
+     */
+    static ArenaParser forLines(String fileName) {
+        return new ArenaParser(null, fileName);
+    }
+    /**
+     * Reads the whole file, so the reading can be timed apart from the parsing.
+     *
+     * @throws FileNotFoundException if the file isn't found.
+     * @throws IOException if there is an error reading the file.
+     */
+    public void read() throws IOException {
+        bytes = load(ARENA.get());
+    }
+    /**
+     * Parses the commands of the file, reading it first if read() was not called.
+     *
+     * @return the parsed commands, in order.
+     * @throws FileNotFoundException if the file isn't found.
+     * @throws IOException if there is an error reading the file.
+     * @throws IllegalStateException if a line holds no valid command (as the Parser does).
+     */
+    public List<VMCommand> parseAll() throws IOException {
+        if (bytes == null) {
+            read();
+        }
+        ParseArena arena = ARENA.get();
+        ByteBuffer bytes = this.bytes;
+        this.bytes = null; //The arena's buffer, which the next file overwrites.
+        List<VMCommand> commands = new ArrayList<>();
+        int end = bytes.limit();
+        int position = 0;
+        int lineNumber = 0;
+        while (position < end) {
+            lineNumber++;
+            int lineEnd = position;
+            while (lineEnd < end && bytes.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            VMCommand command = parseLine(arena, bytes, position, lineEnd, lineNumber);
+            if (command != null) {
+                commands.add(command);
+            }
+            position = lineEnd + 1;
+        }
+        return commands;
+    }
+    /**
+     * Reads the file into the arena's buffer and closes the channel.
+     */
+    private ByteBuffer load(ParseArena arena) throws IOException {
+        try (FileChannel channel = FileChannel.open(vmFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > ParseArena.MAX_BUFFER_SIZE) {
+                throw new IOException("File too large: " + vmFile);
+            }
+            ByteBuffer buffer = arena.buffer((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                //Reads until the end of the file.
+            }
+            return buffer.flip();
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("File not found: " + vmFile);
+        }
+    }
+    /**
+     * Parses one line, read by the caller. White space is any byte up to ' ' (so tabs and the '\r' of a CRLF line end
+     * too), and a comment starts at "//", even right after a token.
+     *
+     * @param bytes the bytes that hold the line.
+     * @param start the index of its first byte.
+     * @param end the index after its last byte, its '\n' excluded.
+     * @param lineNumber the line number in the file (1 based).
+     * @return the command, or null if the line holds only white space and comments.
+     * @throws IllegalStateException if the line holds no valid command (as the Parser does).
+     */
+    VMCommand parseLine(ByteBuffer bytes, int start, int end, int lineNumber) {
+        return parseLine(ARENA.get(), bytes, start, end, lineNumber);
+    }
+    private VMCommand parseLine(ParseArena arena, ByteBuffer bytes, int start, int end, int lineNumber) {
+        //Cuts the comment and the tokens, up to three (more are ignored, as the Parser does).
+        int count = 0;
+        int i = start;
+        while (i < end) {
+            byte b = bytes.get(i);
+            if (b == '/' && i + 1 < end && bytes.get(i + 1) == '/') {
+                end = i;
+                break;
+            }
+            if (b <= ' ') {
+                i++;
+                continue;
+            }
+            int tokenStart = i;
+            while (i < end && bytes.get(i) > ' ' && !(bytes.get(i) == '/' && i + 1 < end && bytes.get(i + 1) == '/')) {
+                i++;
+            }
+            if (count < 3) {
+                tokenStarts[count] = tokenStart;
+                tokenEnds[count] = i;
+            }
+            count++;
+        }
+        if (count == 0) {
+            return null;
+        }
+        String keyword = arena.intern(bytes, tokenStarts[0], tokenEnds[0]);
+        String type = commandType(keyword);
+        if (type == null || (type.equals("C_ARITHMETIC") && count > 1)) {
+            throw new IllegalStateException("Command not defined: " + text(bytes, start, end));
+        }
+        return switch (type) {
+            case "C_RETURN" -> new VMCommand(type, null, 0, fileName, lineNumber);
+            case "C_ARITHMETIC" -> new VMCommand(type, keyword, 0, fileName, lineNumber);
+            default -> {
+                if (count < 2) {
+                    throw new IllegalArgumentException("Command not defined: " + text(bytes, start, end));
+                }
+                String arg1 = arena.intern(bytes, tokenStarts[1], tokenEnds[1]);
+                int arg2 = 0;
+                if (type.equals("C_PUSH") || type.equals("C_POP") || type.equals("C_FUNCTION") || type.equals("C_CALL")) {
+                    arg2 = count < 3 ? Integer.MIN_VALUE : parseInt(bytes, tokenStarts[2], tokenEnds[2]);
+                    if (arg2 == Integer.MIN_VALUE) {
+                        throw new IllegalStateException("Invalid or missing 2nd argument for args2: "
+                                + text(bytes, start, end));
+                    }
+                }
+                yield new VMCommand(type, arg1, arg2, fileName, lineNumber);
+            }
+        };
+    }
+    private static String commandType(String keyword) {
+        return switch (keyword) {
+            case "push" -> "C_PUSH";
+            case "pop" -> "C_POP";
+            case "add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not" -> "C_ARITHMETIC";
+            case "label" -> "C_LABEL";
+            case "goto" -> "C_GOTO";
+            case "if-goto" -> "C_IF";
+            case "call" -> "C_CALL";
+            case "function" -> "C_FUNCTION";
+            case "return" -> "C_RETURN";
+            default -> null;
+        };
+    }
+    /**
+     * Parses a decimal int with an optional sign.
+     *
+     * @return the value, or Integer.MIN_VALUE if the token is not an int.
+     */
+    private static int parseInt(ByteBuffer bytes, int start, int end) {
+        boolean negative = bytes.get(start) == '-';
+        int i = negative || bytes.get(start) == '+' ? start + 1 : start;
+        if (i == end) {
+            return Integer.MIN_VALUE;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = bytes.get(i) - '0';
+            if (digit < 0 || digit > 9 || (value = value * 10 + digit) > Integer.MAX_VALUE) {
+                return Integer.MIN_VALUE;
+            }
+        }
+        return (int) (negative ? -value : value);
+    }
+    /**
+     * The trimmed text of a line, for the error messages.
+     */
+    private static String text(ByteBuffer bytes, int start, int end) {
+        byte[] line = new byte[end - start];
+        bytes.get(start, line);
+        return new String(line).trim();
+    }
+}
@@ -0,0 +1,93 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.io.Writer;
+/**
+ * Sits between the CodeWriter and the output file and looks at the generated code line by line.
+ * It keeps the ROM address of the next instruction (labels and comments take no ROM), and turns the
+ * source markers written by the CodeWriter into source map entries instead of passing them to the file.
+ */
+class AsmLineWriter extends Writer {
+    /**
+     * A line that starts with this character is a source marker, not assembly.
+     */
+    static final char MARKER = '\0';
+    private final Writer out;
+    private final SourceMap sourceMap;
+    private final StringBuilder line = new StringBuilder();
+    private int romAddress;
+    /**
+     * @param out the stream of the '.asm' output.
+     * @param sourceMap the source map to fill, or null to drop the markers.
+     */
+    AsmLineWriter(Writer out, SourceMap sourceMap) {
+        this.out = out;
+        this.sourceMap = sourceMap;
+    }
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            char c = buffer[i];
+            if (c == '\n') {
+                endLine();
+            } else {
+                line.append(c);
+            }
+        }
+    }
+    @Override
+    public void write(String text, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                endLine();
+            } else {
+                line.append(c);
+            }
+        }
+    }
+    /**
+     * Classifies the completed line and passes it on.
+     */
+    private void endLine() throws IOException {
+        if (line.length() > 0 && line.charAt(0) == MARKER) {
+            if (sourceMap != null) {
+                sourceMap.mark(romAddress, line.substring(1));
+            }
+        } else if (startsWithComment()) {
+            out.append(line).append('\n');
+        } else {
+            if (line.length() > 0 && line.charAt(0) != '(') {
+                romAddress++; //Only A and C instructions take a ROM word.
+            }
+            out.append(line).append('\n');
+        }
+        line.setLength(0);
+    }
+    private boolean startsWithComment() {
+        return line.length() > 1 && line.charAt(0) == '/' && line.charAt(1) == '/';
+    }
+    /**
+     * @return the ROM address the next instruction will get.
+     */
+    int getRomAddress() {
+        return romAddress;
+    }
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+    @Override
+    public void close() throws IOException {
+        if (line.length() > 0) {
+            endLine();
+        }
+        try {
+            if (sourceMap != null) {
+                sourceMap.close(romAddress);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package vmtranslator;
+
+import java.util.List;
+/**
+ * A pass over the generated assembly lines, run before they reach the output file.
+ * The lines come in runs that start and end at a label (or the start and end of the program), so a pass that only
+ * looks at straight-line code never misses a window.
+ */
+public interface AsmPass extends Pass {
+    /**
+     * Rewrites the lines in place. Comment lines and source markers should be left where they are.
+     *
+     * @param lines the generated lines, without their line breaks.
+     * @return the number of rewrites done.
+     */
+    int run(List<String> lines);
+}
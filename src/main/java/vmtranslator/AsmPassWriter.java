@@ -0,0 +1,85 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+/**
+ * Sits between the CodeWriter and the rest of the output chain and runs the assembly passes over the generated lines.
+ * The lines are collected and handed to the passes in runs that end right before a label, so no window of
+ * straight-line code is cut in two, and then passed on.
+ */
+class AsmPassWriter extends Writer {
+    private static final int RUN_LINES = 8192; //A run is cut at the first label after this many lines.
+    private final Writer out;
+    private final PassManager passes;
+    private final StringBuilder line = new StringBuilder();
+    private final List<String> lines = new ArrayList<>();
+    /**
+     * @param out the rest of the output chain.
+     * @param passes the pass manager whose assembly passes should run.
+     */
+    AsmPassWriter(Writer out, PassManager passes) {
+        this.out = out;
+        this.passes = passes;
+    }
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            char c = buffer[i];
+            if (c == '\n') {
+                endLine();
+            } else {
+                line.append(c);
+            }
+        }
+    }
+    @Override
+    public void write(String text, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                endLine();
+            } else {
+                line.append(c);
+            }
+        }
+    }
+    private void endLine() throws IOException {
+        String completed = line.toString();
+        line.setLength(0);
+        if (lines.size() >= RUN_LINES && completed.startsWith("(")) {
+            runPasses();
+        }
+        lines.add(completed);
+    }
+    /**
+     * Runs the passes over the collected lines and passes them on.
+     */
+    private void runPasses() throws IOException {
+        passes.runAsm(lines);
+        for (String asm : lines) {
+            out.append(asm).append('\n');
+        }
+        lines.clear();
+    }
+    /**
+     * Flushes the lines the passes already ran over. The collected run is kept until it ends or the writer is closed,
+     * so a flush never changes the output.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+    @Override
+    public void close() throws IOException {
+        try {
+            if (line.length() > 0) {
+                endLine();
+            }
+            runPasses();
+        } finally {
+            out.close();
+        }
+    }
+}
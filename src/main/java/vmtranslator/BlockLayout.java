@@ -0,0 +1,189 @@
+package vmtranslator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+/**
+ * The block layout of the ProfilePass: lays out the loops and branches that ran so the common path falls through.
+ * On Hack a jump costs the same taken or not and at any distance, so what the layout saves are the gotos on the hot
+ * path (2 cycles each) and the not in front of a loop test.
+ * - A loop (label L, a straight-line test, if-goto E, the body, goto L, label E) whose goto ran is rotated: the test
+ *   moves below the body and jumps back to it, so an iteration runs no goto. A test ending in eq/gt/lt and not jumps
+ *   back on the comparison and drops the not, any other test jumps back if it is zero. The loop is entered with a goto.
+ * - if-goto T / goto F / label T that ran becomes one jump to F if the value is zero.
+ * - If it has an else part (goto END, label F, the else part, label END) and the then part ran more often, the else
+ *   part is placed first instead, so the then part falls into END and only the colder side runs a goto.
+ * The labels are kept, so every other jump to them lands where it did.
+ */
+final class BlockLayout {
+    private final List<VMCommand> commands;
+    private final Profile profile;
+    private final String[] functions; //The function of each command, "" outside any.
+    private final Map<String, Integer> labels = new HashMap<>(); //function$label to the index of the label command.
+    private final Set<String> duplicates = new HashSet<>();
+    private int changes;
+    /**
+     * @param commands the commands of the whole program.
+     * @param profile the execution counts.
+     */
+    BlockLayout(List<VMCommand> commands, Profile profile) {
+        this.commands = commands;
+        this.profile = profile;
+        functions = new String[commands.size()];
+        String currentFunction = "";
+        for (int i = 0; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            if (command.getType().equals("C_FUNCTION")) {
+                currentFunction = command.getArg1();
+            }
+            functions[i] = currentFunction;
+            String name = currentFunction + "$" + command.getArg1();
+            if (command.getType().equals("C_LABEL") && labels.putIfAbsent(name, i) != null) {
+                duplicates.add(name);
+            }
+        }
+    }
+    /**
+     * @return the commands laid out.
+     */
+    List<VMCommand> apply() {
+        List<VMCommand> result = new ArrayList<>(commands.size());
+        layout(0, commands.size(), result);
+        return result;
+    }
+    /**
+     * @return the number of loops and branches laid out by apply().
+     */
+    int changes() {
+        return changes;
+    }
+    /**
+     * Lays out the commands from start to end (excluded), the loops and branches that lie entirely in it included.
+     */
+    private void layout(int start, int end, List<VMCommand> result) {
+        int i = start;
+        while (i < end) {
+            int next = rotateLoop(i, end, result);
+            if (next < 0) {
+                next = layoutBranch(i, end, result);
+            }
+            if (next < 0) {
+                result.add(commands.get(i));
+                next = i + 1;
+            }
+            i = next;
+        }
+    }
+    /**
+     * Rotates the loop that starts at i if it ran and ends before end.
+     *
+     * @return the index of its exit label, which is left to the caller, or -1 if nothing was done.
+     */
+    private int rotateLoop(int i, int end, List<VMCommand> result) {
+        VMCommand label = commands.get(i);
+        if (!label.getType().equals("C_LABEL")) {
+            return -1;
+        }
+        int test = i + 1;
+        while (test < end && isStraightLine(commands.get(test))) {
+            test++;
+        }
+        if (test == end || !commands.get(test).getType().equals("C_IF")) {
+            return -1;
+        }
+        int exit = target(test);
+        if (exit <= test + 1 || exit >= end) {
+            return -1;
+        }
+        VMCommand back = commands.get(exit - 1);
+        if (!back.getType().equals("C_GOTO") || !back.getArg1().equals(label.getArg1())
+                || profile.getBranchCount(back) == 0) {
+            return -1;
+        }
+        VMCommand exitJump = commands.get(test);
+        String body = freshLabel(i, label.getArg1() + "$BODY");
+        boolean dropNot = test - 2 > i && isArithmetic(commands.get(test - 1), "not")
+                && isArithmetic(commands.get(test - 2), "eq|gt|lt"); //Only the comparisons give exactly 0 or -1.
+        result.add(back);
+        result.add(new VMCommand("C_LABEL", body, 0, label.getFileName(), label.getLineNumber()));
+        layout(test + 1, exit - 1, result);
+        result.add(label);
+        result.addAll(commands.subList(i + 1, dropNot ? test - 1 : test));
+        result.add(new VMCommand(dropNot ? "C_IF" : "C_IF_ZERO", body, 0, exitJump.getFileName(),
+                exitJump.getLineNumber()));
+        changes++;
+        return exit;
+    }
+    /**
+     * Lays out the branch that starts at i if it ran and ends before end.
+     *
+     * @return the index of the first command after what was laid out, or -1 if nothing was done.
+     */
+    private int layoutBranch(int i, int end, List<VMCommand> result) {
+        VMCommand branch = commands.get(i);
+        if (!branch.getType().equals("C_IF") || i + 2 >= end || profile.getBranchCount(branch) == 0) {
+            return -1;
+        }
+        VMCommand skip = commands.get(i + 1);
+        VMCommand thenLabel = commands.get(i + 2);
+        if (!skip.getType().equals("C_GOTO") || !thenLabel.getType().equals("C_LABEL")
+                || !thenLabel.getArg1().equals(branch.getArg1())) {
+            return -1;
+        }
+        int elseLabel = target(i + 1);
+        if (elseLabel > i + 3 && elseLabel < end && commands.get(elseLabel - 1).getType().equals("C_GOTO")) {
+            VMCommand endJump = commands.get(elseLabel - 1);
+            int endLabel = target(elseLabel - 1);
+            if (endLabel > elseLabel && endLabel < end
+                    && profile.getBranchCount(endJump) > profile.getBranchCount(skip)) {
+                //The then part is the hotter one: the else part goes first and jumps to END.
+                result.add(branch);
+                result.add(commands.get(elseLabel));
+                layout(elseLabel + 1, endLabel, result);
+                result.add(endJump);
+                result.add(thenLabel);
+                layout(i + 3, elseLabel - 1, result);
+                changes++;
+                return endLabel;
+            }
+        }
+        result.add(skip.withType("C_IF_ZERO"));
+        result.add(thenLabel);
+        changes++;
+        return i + 3;
+    }
+    /**
+     * Returns the index of the label a goto or if-goto jumps to, or -1 if it is not defined exactly once.
+     */
+    private int target(int jump) {
+        String name = functions[jump] + "$" + commands.get(jump).getArg1();
+        Integer index = labels.get(name);
+        return index == null || duplicates.contains(name) ? -1 : index;
+    }
+    /**
+     * Returns a label name not used yet in the function of the command at i.
+     */
+    private String freshLabel(int i, String name) {
+        String label = name;
+        for (int n = 1; labels.containsKey(functions[i] + "$" + label); n++) {
+            label = name + n;
+        }
+        labels.put(functions[i] + "$" + label, -1);
+        return label;
+    }
+    /**
+     * Checks if a command always goes on to the next one (a call comes back to it).
+     */
+    private static boolean isStraightLine(VMCommand command) {
+        return switch (command.getType()) {
+            case "C_LABEL", "C_GOTO", "C_IF", "C_IF_ZERO", "C_FUNCTION", "C_RETURN", "C_RETURN_SHARED" -> false;
+            default -> true;
+        };
+    }
+    private static boolean isArithmetic(VMCommand command, String names) {
+        return command.getType().equals("C_ARITHMETIC") && command.getArg1().matches(names);
+    }
+}
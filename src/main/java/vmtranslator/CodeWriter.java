@@ -4,14 +4,30 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 /**
  * translates VM commands into Hack assembly code and writes to an output file - an .asm file.
  */
 public class CodeWriter implements AutoCloseable {
-    private BufferedWriter bw;
+    private Writer bw;
     private String currentFileName;
+    private String commandFileName; //The file of the last command that carried one.
     private String currentFunction = "";
-    private static int labelCounter = 0; // Static counter for unique labels, used in the helper function later on.
+    private boolean sourceMarkers; //When set, every command starts with a marker line for the source map.
+    private boolean comments = true; //Off in compact mode, so no comment is built at all.
+    private LabelMangler mangler; //Gives the labels short names in compact mode, null keeps them readable.
+    private boolean sharedCallUsed; //The shared routines are written once at the end, only if a site jumps to them.
+    private boolean sharedReturnUsed;
+    private boolean sharedDivideUsed;
+    private boolean finished;
+    //The labels of the shared routines all start with "$VM.". Every label of the program is a function name or
+    //function$label ($label outside a function), so these can only clash with a function named so or a label
+    //outside a function, which are rejected.
+    private static final String RESERVED = "$VM.";
+    private static final String SHARED_CALL = "$VM.CALL";
+    private static final String SHARED_RETURN = "$VM.RETURN";
+    private static final String SHARED_DIVIDE = "$VM.DIVIDE";
+    private int labelCounter = 0; // Counter for unique labels in this output, used in the helper function later on.
     /**
      * opens the output file/stream and gets ready to write into it.
      *
@@ -19,13 +35,79 @@ public class CodeWriter implements AutoCloseable {
      * @throws IOException if there is an error creating the wanted file.
      */
     public CodeWriter(String outputFile) throws IOException {
-        bw = new BufferedWriter(new FileWriter(outputFile));
+        this(new BufferedWriter(new FileWriter(outputFile)));
+    }
+    /**
+     * Gets ready to write into an already opened stream.
+     *
+     * @param out the stream of the '.asm' output, closed by close().
+     */
+    public CodeWriter(Writer out) {
+        bw = out;
         currentFileName = ""; // Initialize file name.
     }
     public void setFileName(String fileName) {
         // Strip file extension (if present) and store the base name.
         currentFileName = new File(fileName).getName().replace(".vm", "");
     }
+    /**
+     * Turns on the source markers, that the AsmLineWriter turns into source map entries.
+     *
+     * @param enabled true to write a marker before every command.
+     */
+    public void setSourceMarkers(boolean enabled) {
+        sourceMarkers = enabled;
+    }
+    /**
+     * Turns the comment lines on or off.
+     *
+     * @param enabled false to write no comments (the compact output mode).
+     */
+    public void setComments(boolean enabled) {
+        comments = enabled;
+    }
+    /**
+     * Gives every generated label a short name from the given mangler, for the compact output mode.
+     *
+     * @param mangler the mangler, or null to keep the readable names.
+     */
+    public void setLabelMangler(LabelMangler mangler) {
+        this.mangler = mangler;
+    }
+    public LabelMangler getLabelMangler() {
+        return mangler;
+    }
+    /**
+     * Returns the name to emit for a generated label (function entry, function$label, TRUE/END/RETURN).
+     */
+    private String label(String name) {
+        return mangler == null ? name : mangler.shortName(name);
+    }
+    /**
+     * Returns the name to emit for a VM label of the current function.
+     */
+    private String scopedLabel(String label) {
+        String name = currentFunction + "$" + label;
+        if (name.startsWith(RESERVED)) {
+            throw new IllegalArgumentException("Label reserved for the shared routines: " + label);
+        }
+        return label(name);
+    }
+    /**
+     * Writes a comment line, the text goes right after the "//".
+     */
+    private void writeComment(String text) throws IOException {
+        if (comments) {
+            bw.write("//" + text + "\n");
+        }
+    }
+    /**
+     * Writes a source marker line: file, line, function and command, tab separated.
+     */
+    private void writeMarker(String fileName, int lineNumber, String function, String command) throws IOException {
+        bw.write(AsmLineWriter.MARKER + (fileName == null ? "-" : fileName) + "\t" + lineNumber + "\t"
+                + (function.isEmpty() ? "-" : function) + "\t" + command + "\n");
+    }
 
     /**
      * Handles eq, gt, lt operations with a helper function for better approach in the writeArithmetic function.
@@ -40,8 +122,8 @@ public class CodeWriter implements AutoCloseable {
             case "lt" -> "JLT";
             default -> throw new IllegalArgumentException("Invalid comparison command: " + command);
         };
-        String labelTrue = "TRUE" + labelCounter;
-        String labelEnd = "END" + labelCounter;
+        String labelTrue = label("TRUE" + labelCounter);
+        String labelEnd = label("END" + labelCounter);
         labelCounter++;
         bw.write("@SP\n");
         bw.write("AM=M-1\n"); // Decrement SP, access the top value
@@ -71,7 +153,7 @@ public class CodeWriter implements AutoCloseable {
      */
     public void writeArithmetic(String command) throws IOException {
         //We will start first with a row of comment for clarification.
-        bw.write("//" + command + "\n");
+        writeComment(command);
         //Use switch case for convenient.
         switch (command) {
             case "add": //x + y
@@ -153,7 +235,7 @@ public class CodeWriter implements AutoCloseable {
         if (command.equals("C_PUSH")) {
             switch (segment) {
                 case "constant": //We will push the constant index onto the stack.
-                    bw.write("// push constant " + index + "\n");
+                    writeComment(" push constant " + index);
                     bw.write("@" + index + "\n"); //Load's the constant to A.
                     bw.write("D=A\n"); //Store it on D.
                     bw.write("@SP\n");
@@ -168,7 +250,7 @@ public class CodeWriter implements AutoCloseable {
                 case "this":
                 case "that":
                     //We will handle values from segment[index] onto the stack.
-                    bw.write("// push " + segment + " " + index + "\n");
+                    writeComment(" push " + segment + " " + index);
                     bw.write("@" + index + "\n"); //Loading the index.
                     bw.write("D=A\n"); //Store it on D.
                     bw.write("@" + getSegmentP(segment) + "\n"); //Using the helper function.
@@ -183,7 +265,7 @@ public class CodeWriter implements AutoCloseable {
                     break;
 
                 case "temp": //Push the value from temp at place index onto the stack.
-                    bw.write("// push temp " + index + "\n");
+                    writeComment(" push temp " + index);
                     bw.write("@" + (5 + index) + "\n"); //The temp segment start's at RAM[5] so we use it like that.
                     bw.write("D=M\n"); //Gets the value at the index.
                     bw.write("@SP\n");
@@ -194,7 +276,7 @@ public class CodeWriter implements AutoCloseable {
                     break;
 
                 case "pointer": //Push the value from this/that pointer onto the stack.
-                    bw.write("// push pointer " + index + "\n");
+                    writeComment(" push pointer " + index);
                     bw.write("@" + (3 + index) + "\n"); //The this/that segment start's at RAM[3] so we use it like that.
                     bw.write("D=M\n"); //Gets the value at the index.
                     bw.write("@SP\n");
@@ -205,7 +287,7 @@ public class CodeWriter implements AutoCloseable {
                     break;
 
                 case "static": //Push the value from static at place index onto the stack.
-                    bw.write("// push static " + index + "\n");
+                    writeComment(" push static " + index);
                     bw.write("@" + currentFileName + "." + index + "\n"); //Using file name for prefix.
                     bw.write("D=M\n"); //Gets the value at the index.
                     bw.write("@SP\n");
@@ -225,7 +307,7 @@ public class CodeWriter implements AutoCloseable {
                 case "argument":
                 case "this":
                 case "that":
-                    bw.write("// pop " + segment + " " + index + "\n");
+                    writeComment(" pop " + segment + " " + index);
                     bw.write("@" + index + "\n"); //Loading the index.
                     bw.write("D=A\n"); //Store it on D.
                     bw.write("@" + getSegmentP(segment) + "\n"); //Using the helper function.
@@ -241,7 +323,7 @@ public class CodeWriter implements AutoCloseable {
                     break;
 
                 case "temp": //pop the value from stack into temp at place index.
-                    bw.write("// pop temp " + index + "\n");
+                    writeComment(" pop temp " + index);
                     bw.write("@SP\n");
                     bw.write("AM=M-1\n"); //Decrement the stack pointer.
                     bw.write("D=M\n"); //Storing.
@@ -249,7 +331,7 @@ public class CodeWriter implements AutoCloseable {
                     bw.write("M=D\n"); // Store at temp[index].
                     break;
                 case "pointer"://pop the value from stack into this/that at place index.
-                    bw.write("// pop pointer " + index + "\n");
+                    writeComment(" pop pointer " + index);
                     bw.write("@SP\n");
                     bw.write("AM=M-1\n"); //Decrement the stack pointer.
                     bw.write("D=M\n"); //Storing.
@@ -258,7 +340,7 @@ public class CodeWriter implements AutoCloseable {
                     break;
 
                 case "static": //pop the value from stack into static at place index.
-                    bw.write("// pop static " + index + "\n");
+                    writeComment(" pop static " + index);
                     bw.write("@SP\n");
                     bw.write("AM=M-1\n"); //Decrement the stack pointer.
                     bw.write("D=M\n"); //Storing.
@@ -272,14 +354,379 @@ public class CodeWriter implements AutoCloseable {
             throw new IllegalArgumentException("Invalid command: " + command);
         }
     }
+    /**
+     * Writes the assembly code of a parsed command, dispatching on its type.
+     *
+     * @param command the parsed (or fused) VM command.
+     * @throws IOException if there is an error writing to the file.
+     */
+    public void writeCommand(VMCommand command) throws IOException {
+        String fileName = command.getFileName();
+        if (fileName != null && !fileName.equals(commandFileName)) {
+            //A stream may mix files (e.g., an inlined callee), the statics follow the file of each command.
+            commandFileName = fileName;
+            setFileName(fileName);
+        }
+        if (sourceMarkers) {
+            String function = command.getType().equals("C_FUNCTION") ? command.getArg1() : currentFunction;
+            writeMarker(command.getFileName(), command.getLineNumber(), function, command.toString());
+        }
+        switch (command.getType()) {
+            case "C_ARITHMETIC" -> writeArithmetic(command.getArg1());
+            case "C_PUSH", "C_POP" -> writePushPop(command.getType(), command.getArg1(), command.getArg2());
+            case "C_LABEL" -> Writelabel(command.getArg1());
+            case "C_GOTO" -> WriteGoto(command.getArg1());
+            case "C_IF" -> WriteIf(command.getArg1());
+            case "C_IF_ZERO" -> writeIfZero(command.getArg1());
+            case "C_FUNCTION" -> WriteFunction(command.getArg1(), command.getArg2());
+            case "C_CALL" -> WriteCall(command.getArg1(), command.getArg2());
+            case "C_RETURN" -> WriteReturn();
+            case "C_CALL_SHARED" -> writeSharedCall(command.getArg1(), command.getArg2());
+            case "C_RETURN_SHARED" -> writeSharedReturn();
+            case "C_FUSED" -> {
+                writeComment(" " + command);
+                command.getIdiom().emit(this, command.getParts());
+            }
+            default -> throw new IllegalStateException("Unexpected command type: " + command.getType());
+        }
+    }
+    /**
+     * Helper method that leaves A pointing at segment[index], for the segments that live at a fixed address.
+     * Returns false for local/argument/this/that, whose address depends on a base pointer.
+     */
+    private boolean writeFixedAddress(String segment, int index) throws IOException {
+        switch (segment) {
+            case "temp" -> bw.write("@" + (5 + index) + "\n"); //The temp segment start's at RAM[5].
+            case "pointer" -> bw.write("@" + (3 + index) + "\n"); //The this/that pointers are at RAM[3].
+            case "static" -> bw.write("@" + currentFileName + "." + index + "\n"); //Using file name for prefix.
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+    /**
+     * Fused push seg i / push constant 1 / add (or sub) / pop seg i : updates the slot in place.
+     *
+     * @param segment the VM segment (local, argument, this, that, temp or static).
+     * @param index the index within the segment.
+     * @param increment true for +1, false for -1.
+     * @throws IOException if there is an error writing to the file.
+     */
+    public void writeIncrement(String segment, int index, boolean increment) throws IOException {
+        if (!writeFixedAddress(segment, index)) {
+            if (index == 0) {
+                bw.write("@" + getSegmentP(segment) + "\n");
+                bw.write("A=M\n"); //Base address is the slot itself.
+            } else {
+                bw.write("@" + index + "\n");
+                bw.write("D=A\n");
+                bw.write("@" + getSegmentP(segment) + "\n");
+                bw.write("A=D+M\n"); //Base + index.
+            }
+        }
+        bw.write(increment ? "M=M+1\n" : "M=M-1\n");
+    }
+    /**
+     * Fused pop pointer 1 / push that 0 : sets THAT to the top value and replaces it with that[0].
+     *
+     * @throws IOException if there is an error writing to the file.
+     */
+    public void writeArrayLoad() throws IOException {
+        bw.write("@SP\n");
+        bw.write("A=M-1\n");
+        bw.write("D=M\n"); //The address of the element.
+        bw.write("@THAT\n");
+        bw.write("M=D\n"); //pointer 1 = address.
+        bw.write("A=D\n");
+        bw.write("D=M\n"); //that[0].
+        bw.write("@SP\n");
+        bw.write("A=M-1\n");
+        bw.write("M=D\n"); //Same stack slot, the SP is not changed.
+    }
+    /**
+     * Fused push srcSegment srcIndex / pop dstSegment dstIndex : copies the value through D, the stack is not used.
+     *
+     * @throws IOException if there is an error writing to the file.
+     */
+    public void writeMove(String srcSegment, int srcIndex, String dstSegment, int dstIndex) throws IOException {
+        boolean fixed = dstSegment.matches("temp|pointer|static");
+        boolean far = !fixed && dstIndex > 3;
+        if (far) {
+            //The target address needs D, so we compute it first and keep it in R13.
+            bw.write("@" + dstIndex + "\n");
+            bw.write("D=A\n");
+            bw.write("@" + getSegmentP(dstSegment) + "\n");
+            bw.write("D=D+M\n");
+            bw.write("@R13\n");
+            bw.write("M=D\n");
+        }
+        //Load the source value into D.
+        if (srcSegment.equals("constant")) {
+            bw.write("@" + srcIndex + "\n");
+            bw.write("D=A\n");
+        } else {
+            if (!writeFixedAddress(srcSegment, srcIndex)) {
+                if (srcIndex == 0) {
+                    bw.write("@" + getSegmentP(srcSegment) + "\n");
+                    bw.write("A=M\n");
+                } else {
+                    bw.write("@" + srcIndex + "\n");
+                    bw.write("D=A\n");
+                    bw.write("@" + getSegmentP(srcSegment) + "\n");
+                    bw.write("A=D+M\n");
+                }
+            }
+            bw.write("D=M\n");
+        }
+        //Store D into the target.
+        if (far) {
+            bw.write("@R13\n");
+            bw.write("A=M\n");
+        } else if (!fixed) {
+            //Close slots are reached by stepping A from the base address.
+            bw.write("@" + getSegmentP(dstSegment) + "\n");
+            bw.write(dstIndex == 0 ? "A=M\n" : "A=M+1\n");
+            for (int i = 1; i < dstIndex; i++) {
+                bw.write("A=A+1\n");
+            }
+        } else {
+            writeFixedAddress(dstSegment, dstIndex);
+        }
+        bw.write("M=D\n");
+    }
+    /**
+     * Pushes the stack slot that is depth words below SP, for a callee inlined by the ProfilePass, whose arguments
+     * and locals are reached relative to SP.
+     *
+     * @param depth the distance of the slot below SP (1 is the top of the stack).
+     * @throws IOException if there is an error writing to the file.
+     */
+    public void writeStackPush(int depth) throws IOException {
+        if (depth <= 4) {
+            bw.write("@SP\n");
+            bw.write("A=M-1\n");
+            for (int i = 1; i < depth; i++) {
+                bw.write("A=A-1\n");
+            }
+        } else {
+            bw.write("@" + depth + "\n");
+            bw.write("D=A\n");
+            bw.write("@SP\n");
+            bw.write("A=M-D\n");
+        }
+        bw.write("D=M\n");
+        bw.write("@SP\n");
+        bw.write("A=M\n");
+        bw.write("M=D\n"); //Push onto the stack
+        bw.write("@SP\n");
+        bw.write("M=M+1\n"); //Incrementing SP.
+    }
+    /**
+     * Pops the top of the stack into the slot that is depth words below the new SP (see writeStackPush).
+     *
+     * @param depth the distance of the slot below SP once the value is popped.
+     * @throws IOException if there is an error writing to the file.
+     */
+    public void writeStackPop(int depth) throws IOException {
+        if (depth <= 4) {
+            bw.write("@SP\n");
+            bw.write("AM=M-1\n");
+            bw.write("D=M\n");
+            for (int i = 0; i < depth; i++) {
+                bw.write("A=A-1\n"); //A starts at the new SP.
+            }
+            bw.write("M=D\n");
+            return;
+        }
+        bw.write("@" + depth + "\n");
+        bw.write("D=A\n");
+        bw.write("@SP\n");
+        bw.write("M=M-1\n");
+        bw.write("D=M-D\n");
+        bw.write("@R13\n");
+        bw.write("M=D\n"); //R13 = the slot address.
+        bw.write("@SP\n");
+        bw.write("A=M\n");
+        bw.write("D=M\n");
+        bw.write("@R13\n");
+        bw.write("A=M\n");
+        bw.write("M=D\n");
+    }
+    /**
+     * The return of an inlined callee: moves the return value from the top of the stack down to the slot of the
+     * first argument and drops the arguments and locals, as the caller's stack looks after a real return.
+     *
+     * @param frame the number of arguments plus locals of the callee.
+     * @throws IOException if there is an error writing to the file.
+     */
+    public void writeInlineReturn(int frame) throws IOException {
+        if (frame == 0) {
+            return; //The value is already where the call leaves it.
+        }
+        if (frame <= 4) {
+            bw.write("@SP\n");
+            bw.write("AM=M-1\n");
+            bw.write("D=M\n");
+            for (int i = 0; i < frame; i++) {
+                bw.write("A=A-1\n");
+            }
+            bw.write("M=D\n");
+            bw.write("D=A+1\n");
+            bw.write("@SP\n");
+            bw.write("M=D\n");
+            return;
+        }
+        bw.write("@" + frame + "\n");
+        bw.write("D=A\n");
+        bw.write("@SP\n");
+        bw.write("M=M-D\n"); //SP = SP - frame.
+        bw.write("D=D-1\n");
+        bw.write("@SP\n");
+        bw.write("A=D+M\n");
+        bw.write("D=M\n"); //The value, at the old SP - 1.
+        bw.write("@SP\n");
+        bw.write("A=M-1\n");
+        bw.write("M=D\n");
+    }
+    /**
+     * Strength-reduced push constant k / call Math.multiply 2 : multiplies the top of the stack by k in place, by
+     * doubling and adding (Horner's rule over the bits of k). The result wraps to 16 bits, as Math.multiply does.
+     *
+     * @param k the constant factor (0..32767).
+     * @throws IOException if there is an error writing to the file.
+     */
+    public void writeMultiplyByConstant(int k) throws IOException {
+        if (k == 1) {
+            return; //x * 1 is x.
+        }
+        bw.write("@SP\n");
+        bw.write("A=M-1\n");
+        if (k == 0) {
+            bw.write("M=0\n");
+            return;
+        }
+        bw.write("D=M\n"); //D = x, the running product.
+        int top = 31 - Integer.numberOfLeadingZeros(k);
+        if (Integer.bitCount(k) == 1) {
+            //A power of two: double in the stack slot itself, A never moves.
+            for (int i = 0; i < top; i++) {
+                bw.write("M=D\n");
+                bw.write("D=D+M\n");
+            }
+            bw.write("M=D\n");
+            return;
+        }
+        bw.write("@R13\n");
+        bw.write("M=D\n"); //R13 = x.
+        for (int i = top - 1; i >= 0; i--) {
+            bw.write("@R14\n");
+            bw.write("M=D\n");
+            bw.write("D=D+M\n"); //Product * 2.
+            if ((k & (1 << i)) != 0) {
+                bw.write("@R13\n");
+                bw.write("D=D+M\n"); //Product + x.
+            }
+        }
+        bw.write("@SP\n");
+        bw.write("A=M-1\n");
+        bw.write("M=D\n");
+    }
+    /**
+     * Strength-reduced push constant 2^shift / call Math.divide 2 : divides the top of the stack in place, rounding
+     * towards zero as Math.divide does. The division is done by the shared divide routine, written once by finish(),
+     * so a site only passes 2^(shift - 1) in D and the return address in R14.
+     *
+     * @param shift the power of two of the divisor (0..14).
+     * @throws IOException if there is an error writing to the file.
+     */
+    public void writeDivideByPowerOfTwo(int shift) throws IOException {
+        if (shift == 0) {
+            return; //x / 1 is x.
+        }
+        String labeltoreturn = label("RETURN" + labelCounter++);
+        sharedDivideUsed = true;
+        bw.write("@" + labeltoreturn + "\n");
+        bw.write("D=A\n");
+        bw.write("@R14\n");
+        bw.write("M=D\n");
+        bw.write("@" + (1 << (shift - 1)) + "\n");
+        bw.write("D=A\n");
+        bw.write("@" + label(SHARED_DIVIDE) + "\n");
+        bw.write("0;JMP\n");
+        bw.write("(" + labeltoreturn + ")\n");
+    }
+    /**
+     * Writes the shared divide routine: the top of the stack divided by 2^shift, with 2^(shift - 1) in D and the
+     * return address in R14. Hack has no right shift, so the quotient is built from the top bit of |x| down: R13
+     * starts as a marker bit, and every round doubles it and adds the next bit of |x|. After 16 - shift rounds the
+     * marker reaches bit 15 and the quotient is below it. Then the sign of x is put back.
+     */
+    private void writeSharedDivide() throws IOException {
+        String positive = label(SHARED_DIVIDE + ".POS");
+        String loop = label(SHARED_DIVIDE + ".LOOP");
+        String zero = label(SHARED_DIVIDE + ".ZERO");
+        String done = label(SHARED_DIVIDE + ".END");
+        bw.write("(" + label(SHARED_DIVIDE) + ")\n");
+        bw.write("@R13\n");
+        bw.write("M=D\n"); //R13 = the marker.
+        bw.write("@SP\n");
+        bw.write("A=M-1\n");
+        bw.write("D=M\n");
+        bw.write("@" + positive + "\n");
+        bw.write("D;JGE\n");
+        bw.write("D=-D\n");
+        bw.write("(" + positive + ")\n");
+        bw.write("@R15\n");
+        bw.write("M=D\n"); //R15 = |x|, which has bit 15 set only for -32768.
+        bw.write("@R13\n");
+        bw.write("D=M\n");
+        bw.write("(" + loop + ")\n"); //D = R13.
+        bw.write("@R13\n");
+        bw.write("M=D+M\n");
+        bw.write("@R15\n");
+        bw.write("D=M\n");
+        bw.write("M=D+M\n"); //|x| moves up, D keeps the bit that comes in.
+        bw.write("@" + zero + "\n");
+        bw.write("D;JGE\n");
+        bw.write("@R13\n");
+        bw.write("MD=M+1\n");
+        bw.write("@" + loop + "\n");
+        bw.write("D;JGE\n"); //Until the marker is in bit 15, the test is repeated below on the way out.
+        bw.write("(" + zero + ")\n");
+        bw.write("@R13\n");
+        bw.write("D=M\n");
+        bw.write("@" + loop + "\n");
+        bw.write("D;JGE\n");
+        bw.write("@32767\n");
+        bw.write("D=D&A\n");
+        bw.write("@R13\n");
+        bw.write("M=D\n"); //The quotient, without the marker.
+        bw.write("@SP\n");
+        bw.write("A=M-1\n");
+        bw.write("D=M\n");
+        bw.write("@" + done + "\n");
+        bw.write("D;JGE\n");
+        bw.write("@R13\n");
+        bw.write("M=-M\n");
+        bw.write("(" + done + ")\n");
+        bw.write("@R13\n");
+        bw.write("D=M\n");
+        bw.write("@SP\n");
+        bw.write("A=M-1\n");
+        bw.write("M=D\n");
+        bw.write("@R14\n");
+        bw.write("A=M\n");
+        bw.write("0;JMP\n");
+    }
     /**
      * Writes assembly code that effects the label command.
      * @param label as the input string.
      */
     public void Writelabel(String label) {
         try {
-            bw.write("// label " + label + "\n");
-            bw.write("(" + currentFunction + "$" + label + ")\n");
+            writeComment(" label " + label);
+            bw.write("(" + scopedLabel(label) + ")\n");
         } catch (IOException e) {
             throw new RuntimeException("Error writing label: " + label, e);
         }
@@ -290,8 +737,8 @@ public class CodeWriter implements AutoCloseable {
      */
     public void WriteGoto(String label) {
         try {
-            bw.write("// goto " + label + "\n");
-            bw.write("@" + currentFunction + "$" + label + "\n"); //As the needed label.
+            writeComment(" goto " + label);
+            bw.write("@" + scopedLabel(label) + "\n"); //As the needed label.
             bw.write("0;JMP\n"); //An unconditional jump.
         } catch (IOException e) {
             throw new RuntimeException("Error writing goto: " + label, e);
@@ -303,16 +750,32 @@ public class CodeWriter implements AutoCloseable {
      */
     public void WriteIf(String label) {
         try {
-            bw.write("// if-goto " + label + "\n");
+            writeComment(" if-goto " + label);
             bw.write("@SP\n");
             bw.write("AM=M-1\n"); //We are decrementing the stack pointer for reaching the top value.
             bw.write("D=M\n"); //By that we are storing the current value at D.
-            bw.write("@" + currentFunction + "$" + label + "\n"); //As the needed label.
+            bw.write("@" + scopedLabel(label) + "\n"); //As the needed label.
             bw.write("D;JNE\n"); //if not zero means the boolean got back true.
         } catch (IOException e) {
             throw new RuntimeException("Error writing if-goto: " + label, e);
         }
     }
+    /**
+     * Writes the jump of a branch laid out by the ProfilePass the other way round: it jumps if the top value is zero.
+     * @param label as the input string.
+     */
+    public void writeIfZero(String label) {
+        try {
+            writeComment(" if-zero-goto " + label);
+            bw.write("@SP\n");
+            bw.write("AM=M-1\n");
+            bw.write("D=M\n");
+            bw.write("@" + scopedLabel(label) + "\n");
+            bw.write("D;JEQ\n"); //Zero means the boolean got back false.
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing if-zero-goto: " + label, e);
+        }
+    }
     /**
      * Writes assembly code that effects the function command.
      * @param functionName as the function string in a name.
@@ -320,9 +783,12 @@ public class CodeWriter implements AutoCloseable {
      */
     public void WriteFunction(String functionName, int nVars) {
         try {
+            if (functionName.startsWith(RESERVED)) {
+                throw new IllegalArgumentException("Function name reserved for the shared routines: " + functionName);
+            }
             currentFunction = functionName; //Updating regarding the input.
-            bw.write("// function " + functionName + " " + nVars + "\n");
-            bw.write("(" + functionName + ")\n");
+            writeComment(" function " + functionName + " " + nVars);
+            bw.write("(" + label(functionName) + ")\n");
             //initializing all the local variables nVars times.
             for (int i = 0; i < nVars; i++) {
                 bw.write("@0\n"); //Start initializing.
@@ -345,9 +811,9 @@ public class CodeWriter implements AutoCloseable {
      */
     public void WriteCall(String functionName, int nArgs) {
         //We will start by defining a string that will hold the return label and the label counter.
-        String labeltoreturn = "RETURN" + labelCounter++;
+        String labeltoreturn = label("RETURN" + labelCounter++);
         try {
-            bw.write("// call " + functionName + " " + nArgs + "\n");
+            writeComment(" call " + functionName + " " + nArgs);
             // Handles Address
             bw.write("@" + labeltoreturn + "\n");
             bw.write("D=A\n");
@@ -402,7 +868,7 @@ public class CodeWriter implements AutoCloseable {
             bw.write("@LCL\n");
             bw.write("M=D\n");
             //JMP to the function.
-            bw.write("@" + functionName + "\n");
+            bw.write("@" + label(functionName) + "\n");
             bw.write("0;JMP\n");
             //Last step - where to return.
             bw.write("(" + labeltoreturn + ")\n");
@@ -418,69 +884,188 @@ public class CodeWriter implements AutoCloseable {
      */
     public void WriteReturn() {
         try {
-            bw.write("// return\n");
-            //Storing endFrame = LCL.
-            bw.write("@LCL\n");
+            writeComment(" return");
+            writeReturnFrame();
+        } catch (IOException e) {
+            throw new RuntimeException("Error write return: " + currentFunction, e);
+        }
+    }
+
+    /**
+     * The body of the return command: restores the caller's frame and jumps to the return address.
+     * Shared by the inline return and the shared return routine.
+     */
+    private void writeReturnFrame() throws IOException {
+        //Storing endFrame = LCL.
+        bw.write("@LCL\n");
+        bw.write("D=M\n");
+        bw.write("@R13\n"); //Temp storage.
+        bw.write("M=D\n");
+        //Storing retAddr = *(endFRAME -5).
+        bw.write("@5\n");
+        bw.write("A=D-A\n");
+        bw.write("D=M\n");
+        bw.write("@R14\n"); //Temp storage.
+        bw.write("M=D\n");
+        //Repositioning *ARG = pop().
+        bw.write("@SP\n");
+        bw.write("AM=M-1\n");
+        bw.write("D=M\n");
+        bw.write("@ARG\n");
+        bw.write("A=M\n");
+        bw.write("M=D\n");
+        //Restore sp = ARG + 1.
+        bw.write("@ARG\n");
+        bw.write("D=M+1\n");
+        bw.write("@SP\n");
+        bw.write("M=D\n");
+        //Restoring THAT : *(endFrame - 1)
+        bw.write("@R13\n"); //Temp storage.
+        bw.write("AM=M-1\n");
+        bw.write("D=M\n");
+        bw.write("@THAT\n");
+        bw.write("M=D\n");
+        //restoring THIS : *(endFrame - 2)
+        bw.write("@R13\n"); //Temp storage.
+        bw.write("AM=M-1\n");
+        bw.write("D=M\n");
+        bw.write("@THIS\n");
+        bw.write("M=D\n");
+        //Restore ARG : *(endFrame - 3)
+        bw.write("@R13\n"); //Temp storage.
+        bw.write("AM=M-1\n");
+        bw.write("D=M\n");
+        bw.write("@ARG\n");
+        bw.write("M=D\n");
+        //Restore LCL : *(endFrame - 4)
+        bw.write("@R13\n"); //Temp storage.
+        bw.write("AM=M-1\n");
+        bw.write("D=M\n");
+        bw.write("@LCL\n");
+        bw.write("M=D\n");
+        //Last step : go to retAddr.
+        bw.write("@R14\n"); //Temp storage.
+        bw.write("A=M\n");
+        bw.write("0;JMP\n");
+    }
+    /**
+     * Writes a call that jumps to the shared call routine, which pushes the frame and jumps to the function.
+     * The return address goes in R14, nArgs in R13 and the function address in R15.
+     *
+     * @param functionName the function to call.
+     * @param nArgs the number of arguments the caller pushed.
+     * @throws IOException if there is an error writing to the file.
+     */
+    public void writeSharedCall(String functionName, int nArgs) throws IOException {
+        String labeltoreturn = label("RETURN" + labelCounter++);
+        sharedCallUsed = true;
+        writeComment(" call " + functionName + " " + nArgs + " (shared)");
+        bw.write("@" + labeltoreturn + "\n");
+        bw.write("D=A\n");
+        bw.write("@R14\n");
+        bw.write("M=D\n");
+        bw.write("@" + nArgs + "\n");
+        bw.write("D=A\n");
+        bw.write("@R13\n");
+        bw.write("M=D\n");
+        bw.write("@" + label(functionName) + "\n");
+        bw.write("D=A\n");
+        bw.write("@R15\n");
+        bw.write("M=D\n");
+        bw.write("@" + label(SHARED_CALL) + "\n");
+        bw.write("0;JMP\n");
+        bw.write("(" + labeltoreturn + ")\n");
+    }
+    /**
+     * Writes a return that jumps to the shared return routine.
+     *
+     * @throws IOException if there is an error writing to the file.
+     */
+    public void writeSharedReturn() throws IOException {
+        sharedReturnUsed = true;
+        writeComment(" return (shared)");
+        bw.write("@" + label(SHARED_RETURN) + "\n");
+        bw.write("0;JMP\n");
+    }
+    /**
+     * Helper for pushing D onto the stack.
+     */
+    private void writePushD() throws IOException {
+        bw.write("@SP\n");
+        bw.write("A=M\n");
+        bw.write("M=D\n"); //Push onto the stack
+        bw.write("@SP\n");
+        bw.write("M=M+1\n"); //Incrementing SP.
+    }
+    /**
+     * Writes the shared call, return and divide routines that were used, after the rest of the program.
+     * Called by close(), or before it when the labels must be complete (e.g., for the label map).
+     *
+     * @throws IOException if there is an error writing to the file.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (sharedCallUsed) {
+            if (sourceMarkers) {
+                writeMarker(null, 0, "", "shared call routine");
+            }
+            writeComment(" shared call routine");
+            bw.write("(" + label(SHARED_CALL) + ")\n");
+            bw.write("@R14\n"); //Return address.
             bw.write("D=M\n");
-            bw.write("@R13\n"); //Temp storage.
-            bw.write("M=D\n");
-            //Storing retAddr = *(endFRAME -5).
-            bw.write("@5\n");
-            bw.write("A=D-A\n");
+            writePushD();
+            for (String pointer : new String[]{"LCL", "ARG", "THIS", "THAT"}) {
+                bw.write("@" + pointer + "\n");
+                bw.write("D=M\n");
+                writePushD();
+            }
+            //ARG = SP - 5 - nArgs.
+            bw.write("@R13\n");
             bw.write("D=M\n");
-            bw.write("@R14\n"); //Temp storage.
-            bw.write("M=D\n");
-            //Repositioning *ARG = pop().
+            bw.write("@5\n");
+            bw.write("D=D+A\n");
             bw.write("@SP\n");
-            bw.write("AM=M-1\n");
-            bw.write("D=M\n");
+            bw.write("D=M-D\n");
             bw.write("@ARG\n");
-            bw.write("A=M\n");
             bw.write("M=D\n");
-            //Restore sp = ARG + 1.
-            bw.write("@ARG\n");
-            bw.write("D=M+1\n");
+            //LCL = SP.
             bw.write("@SP\n");
-            bw.write("M=D\n");
-            //Restoring THAT : *(endFrame - 1)
-            bw.write("@R13\n"); //Temp storage.
-            bw.write("AM=M-1\n");
-            bw.write("D=M\n");
-            bw.write("@THAT\n");
-            bw.write("M=D\n");
-            //restoring THIS : *(endFrame - 2)
-            bw.write("@R13\n"); //Temp storage.
-            bw.write("AM=M-1\n");
-            bw.write("D=M\n");
-            bw.write("@THIS\n");
-            bw.write("M=D\n");
-            //Restore ARG : *(endFrame - 3)
-            bw.write("@R13\n"); //Temp storage.
-            bw.write("AM=M-1\n");
-            bw.write("D=M\n");
-            bw.write("@ARG\n");
-            bw.write("M=D\n");
-            //Restore LCL : *(endFrame - 4)
-            bw.write("@R13\n"); //Temp storage.
-            bw.write("AM=M-1\n");
             bw.write("D=M\n");
             bw.write("@LCL\n");
             bw.write("M=D\n");
-            //Last step : go to retAddr.
-            bw.write("@R14\n"); //Temp storage.
+            //JMP to the function.
+            bw.write("@R15\n");
             bw.write("A=M\n");
             bw.write("0;JMP\n");
-        } catch (IOException e) {
-            throw new RuntimeException("Error write return: " + currentFunction, e);
+        }
+        if (sharedReturnUsed) {
+            if (sourceMarkers) {
+                writeMarker(null, 0, "", "shared return routine");
+            }
+            writeComment(" shared return routine");
+            bw.write("(" + label(SHARED_RETURN) + ")\n");
+            writeReturnFrame();
+        }
+        if (sharedDivideUsed) {
+            if (sourceMarkers) {
+                writeMarker(null, 0, "", "shared divide routine");
+            }
+            writeComment(" shared divide routine");
+            writeSharedDivide();
         }
     }
-
     /**
      * Forcing the assembly code generated by the VM translator to start with a specific and needed code.
      */
     public void writeBootstrap() {
         try {
-            bw.write("// Bootstrap code\n");
+            if (sourceMarkers) {
+                writeMarker(null, 0, "", "bootstrap");
+            }
+            writeComment(" Bootstrap code");
             // Setting SP to 256.
             bw.write("@256\n");
             bw.write("D=A\n");
@@ -500,7 +1085,11 @@ public class CodeWriter implements AutoCloseable {
     @Override
     public void close() throws IOException {
         if (bw != null) {
-            bw.close();
+            try {
+                finish();
+            } finally {
+                bw.close();
+            }
         }
     }
-}
\ No newline at end of file
+}
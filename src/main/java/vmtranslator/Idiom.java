@@ -0,0 +1,35 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.util.List;
+/**
+ * A recurring run of VM commands that can be emitted as one fused Hack sequence.
+ * Idioms are registered in the IdiomFuser pattern table.
+ */
+public interface Idiom {
+    /**
+     * @return a short name used for the hit-count statistics (e.g., "increment").
+     */
+    String name();
+    /**
+     * @return the number of VM commands the idiom replaces.
+     */
+    int length();
+    /**
+     * Checks if the idiom matches the commands starting at the given position.
+     * The caller makes sure at least length() commands are available.
+     *
+     * @param commands the parsed command stream.
+     * @param start the position of the first command.
+     * @return true/false.
+     */
+    boolean matches(List<VMCommand> commands, int start);
+    /**
+     * Writes the fused Hack sequence for the matched commands.
+     *
+     * @param codeWriter the writer to emit with.
+     * @param parts the matched commands, in order.
+     * @throws IOException if there is an error writing to the file.
+     */
+    void emit(CodeWriter codeWriter, List<VMCommand> parts) throws IOException;
+}
@@ -0,0 +1,198 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+/**
+ * Recognises recurring VM idioms in the parsed command stream and replaces each one with a single fused command.
+ * The pattern table is tried in registration order at every position, the first match wins.
+ * Keeps hit counts per idiom for statistics. Runs as the "fuse" VM pass.
+ */
+public class IdiomFuser implements VmPass {
+    private final List<Idiom> patterns = new ArrayList<>();
+    private final Map<String, Integer> hits = new LinkedHashMap<>();
+    /**
+     * Creates a fuser with the default pattern table: increment/decrement, move and array load.
+     *
+     * @return the fuser.
+     */
+    public static IdiomFuser withDefaults() {
+        IdiomFuser fuser = new IdiomFuser();
+        fuser.register(new Increment());
+        fuser.register(new ArrayLoad());
+        fuser.register(new Move());
+        return fuser;
+    }
+    /**
+     * Adds an idiom at the end of the pattern table.
+     *
+     * @param idiom the idiom to register.
+     */
+    public void register(Idiom idiom) {
+        patterns.add(idiom);
+        hits.putIfAbsent(idiom.name(), 0);
+    }
+    /**
+     * Returns the length of the longest registered idiom.
+     */
+    public int maxLength() {
+        int max = 1;
+        for (Idiom idiom : patterns) {
+            max = Math.max(max, idiom.length());
+        }
+        return max;
+    }
+    @Override
+    public String name() {
+        return "fuse";
+    }
+    @Override
+    public int lookahead() {
+        return maxLength();
+    }
+    @Override
+    public int run(List<VMCommand> commands, List<VMCommand> result, boolean complete) {
+        return fuse(commands, result, complete);
+    }
+    @Override
+    public int changes() {
+        int total = 0;
+        for (int count : hits.values()) {
+            total += count;
+        }
+        return total;
+    }
+    /**
+     * Fuses a stream that arrives in batches. Unless the batch is the last one, stops where a longer idiom could
+     * still continue into the next batch, so a batch boundary never hides a match.
+     *
+     * @param commands the commands of the batch.
+     * @param result the list the (fused) commands are added to.
+     * @param complete true if no more commands follow.
+     * @return the number of commands consumed, the rest should be given again with the next batch.
+     */
+    public int fuse(List<VMCommand> commands, List<VMCommand> result, boolean complete) {
+        int window = maxLength();
+        int i = 0;
+        while (i < commands.size() && (complete || i + window <= commands.size())) {
+            Idiom idiom = match(commands, i);
+            if (idiom == null) {
+                result.add(commands.get(i));
+                i++;
+            } else {
+                result.add(VMCommand.fused(idiom, commands.subList(i, i + idiom.length())));
+                i += idiom.length();
+            }
+        }
+        return i;
+    }
+    /**
+     * Finds the first idiom in the table that matches at the given position.
+     *
+     * @return the idiom, or null if none matches.
+     */
+    private Idiom match(List<VMCommand> commands, int start) {
+        for (Idiom idiom : patterns) {
+            if (start + idiom.length() <= commands.size() && idiom.matches(commands, start)) {
+                hits.merge(idiom.name(), 1, Integer::sum);
+                return idiom;
+            }
+        }
+        return null;
+    }
+    /**
+     * Prints the hit count of every idiom.
+     *
+     * @param out the stream to print to.
+     */
+    public void printStats(PrintStream out) {
+        for (Map.Entry<String, Integer> entry : hits.entrySet()) {
+            out.println("Idiom " + entry.getKey() + ": " + entry.getValue() + " hits");
+        }
+    }
+
+    /**
+     * push seg i / push constant 1 / add|sub / pop seg i, emitted as M=M+1 (M=M-1) directly on the slot.
+     */
+    static class Increment implements Idiom {
+        @Override
+        public String name() {
+            return "increment";
+        }
+        @Override
+        public int length() {
+            return 4;
+        }
+        @Override
+        public boolean matches(List<VMCommand> commands, int start) {
+            VMCommand push = commands.get(start);
+            VMCommand one = commands.get(start + 1);
+            VMCommand op = commands.get(start + 2);
+            VMCommand pop = commands.get(start + 3);
+            return push.getType().equals("C_PUSH")
+                    && push.getArg1().matches("local|argument|this|that|temp|static")
+                    && one.is("C_PUSH", "constant") && one.getArg2() == 1
+                    && op.getType().equals("C_ARITHMETIC") && op.getArg1().matches("add|sub")
+                    && pop.is("C_POP", push.getArg1()) && pop.getArg2() == push.getArg2();
+        }
+        @Override
+        public void emit(CodeWriter codeWriter, List<VMCommand> parts) throws IOException {
+            VMCommand push = parts.get(0);
+            codeWriter.writeIncrement(push.getArg1(), push.getArg2(), parts.get(2).getArg1().equals("add"));
+        }
+    }
+
+    /**
+     * pop pointer 1 / push that 0, the array read the Jack compiler emits for a[i].
+     */
+    static class ArrayLoad implements Idiom {
+        @Override
+        public String name() {
+            return "array-load";
+        }
+        @Override
+        public int length() {
+            return 2;
+        }
+        @Override
+        public boolean matches(List<VMCommand> commands, int start) {
+            VMCommand pop = commands.get(start);
+            VMCommand push = commands.get(start + 1);
+            return pop.is("C_POP", "pointer") && pop.getArg2() == 1
+                    && push.is("C_PUSH", "that") && push.getArg2() == 0;
+        }
+        @Override
+        public void emit(CodeWriter codeWriter, List<VMCommand> parts) throws IOException {
+            codeWriter.writeArrayLoad();
+        }
+    }
+
+    /**
+     * push x / pop y, copied through D without touching the stack.
+     */
+    static class Move implements Idiom {
+        @Override
+        public String name() {
+            return "move";
+        }
+        @Override
+        public int length() {
+            return 2;
+        }
+        @Override
+        public boolean matches(List<VMCommand> commands, int start) {
+            VMCommand push = commands.get(start);
+            VMCommand pop = commands.get(start + 1);
+            return push.getType().equals("C_PUSH") && pop.getType().equals("C_POP");
+        }
+        @Override
+        public void emit(CodeWriter codeWriter, List<VMCommand> parts) throws IOException {
+            VMCommand push = parts.get(0);
+            VMCommand pop = parts.get(1);
+            codeWriter.writeMove(push.getArg1(), push.getArg2(), pop.getArg1(), pop.getArg2());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package vmtranslator;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+/**
+ * Gives generated labels short, dense names for the compact output mode (e.g., "Main.fibonacci$WHILE_END0" becomes "aB").
+ * The same readable name always gets the same short name, so calls that come before the function still match.
+ * Short names never contain '.', so they cannot clash with static variables, and the predefined Hack symbols are skipped.
+ */
+public class LabelMangler {
+    //A Hack symbol may not start with a digit.
+    private static final String FIRST = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ_$";
+    private static final String REST = FIRST + "0123456789";
+    private static final Set<String> PREDEFINED = Set.of("SP", "LCL", "ARG", "THIS", "THAT", "SCREEN", "KBD",
+            "R0", "R1", "R2", "R3", "R4", "R5", "R6", "R7", "R8", "R9", "R10", "R11", "R12", "R13", "R14", "R15");
+    private final Map<String, String> names = new LinkedHashMap<>();
+    private int next;
+    /**
+     * Returns the short name of a label, giving it the next free one the first time.
+     *
+     * @param readable the readable label name.
+     * @return the short name.
+     */
+    public String shortName(String readable) {
+        String name = names.get(readable);
+        if (name == null) {
+            do {
+                name = encode(next++);
+            } while (PREDEFINED.contains(name));
+            names.put(readable, name);
+        }
+        return name;
+    }
+    /**
+     * Encodes a counter as the shortest symbol: one character for the first 54, two for the next 54 * 64 and so on.
+     */
+    private static String encode(int n) {
+        StringBuilder name = new StringBuilder();
+        name.append(FIRST.charAt(n % FIRST.length()));
+        n /= FIRST.length();
+        while (n > 0) {
+            n--;
+            name.append(REST.charAt(n % REST.length()));
+            n /= REST.length();
+        }
+        return name.toString();
+    }
+    /**
+     * Writes the mapping file, one "short readable" pair per line (tab separated).
+     *
+     * @param mapFile the path of the mapping file.
+     * @throws IOException if there is an error writing the file.
+     */
+    public void writeMapping(String mapFile) throws IOException {
+        try (Writer writer = new BufferedWriter(new FileWriter(mapFile))) {
+            for (Map.Entry<String, String> entry : names.entrySet()) {
+                writer.write(entry.getValue() + "\t" + entry.getKey() + "\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package vmtranslator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+/**
+ * The reusable state of the ArenaParser, one per thread: a direct buffer that the files are read into, and a table that
+ * interns the tokens, so a keyword, a segment or a function name is one String however many lines use it.
+ * Nothing in it grows with the number of files: the buffer grows only to the largest file, and the table is cleared
+ * when it fills.
+ */
+class ParseArena {
+    static final int BUFFER_SIZE = 1 << 16; //The first size of the buffer.
+    static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8; //The largest array or buffer a JVM gives.
+    static final int MAX_TOKENS = 1 << 16; //Interned tokens kept before the table is cleared.
+    private ByteBuffer buffer;
+    private String[] table = new String[1024];
+    private int tokens;
+    /**
+     * Returns the arena's buffer, grown if it is smaller than size. The buffer at least doubles when it grows, so a
+     * thread reading bigger and bigger files allocates only a few times.
+     *
+     * @param size the bytes to read, at most MAX_BUFFER_SIZE.
+     * @return the buffer, cleared and limited to size.
+     */
+    ByteBuffer buffer(int size) {
+        if (buffer == null || buffer.capacity() < size) {
+            long capacity = buffer == null ? BUFFER_SIZE : 2L * buffer.capacity();
+            buffer = ByteBuffer.allocateDirect((int) Math.min(MAX_BUFFER_SIZE, Math.max(size, capacity)));
+        }
+        return buffer.clear().limit(size);
+    }
+    /**
+     * Returns the String of the bytes from start to end, the same instance every time the same bytes come.
+     *
+     * @param bytes the bytes of the file.
+     * @param start the index of the first byte of the token.
+     * @param end the index after its last byte.
+     * @return the token.
+     */
+    String intern(ByteBuffer bytes, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            byte b = bytes.get(i);
+            if (b < 0) {
+                return decode(bytes, start, end); //Not ASCII, which VM code never is outside comments.
+            }
+            hash = 31 * hash + b;
+        }
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        String token;
+        while ((token = table[slot]) != null) {
+            if (token.hashCode() == hash && matches(token, bytes, start, end)) {
+                return token;
+            }
+            slot = (slot + 1) & mask;
+        }
+        token = decode(bytes, start, end);
+        if (tokens == MAX_TOKENS) {
+            Arrays.fill(table, null);
+            tokens = 0;
+        } else if (2 * (tokens + 1) > table.length) {
+            grow();
+        }
+        insert(token);
+        return token;
+    }
+    private static boolean matches(String token, ByteBuffer bytes, int start, int end) {
+        if (token.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (token.charAt(i - start) != bytes.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    private static String decode(ByteBuffer bytes, int start, int end) {
+        byte[] chars = new byte[end - start];
+        bytes.get(start, chars);
+        return new String(chars, StandardCharsets.UTF_8);
+    }
+    private void grow() {
+        String[] old = table;
+        table = new String[old.length * 2];
+        tokens = 0;
+        for (String token : old) {
+            if (token != null) {
+                insert(token);
+            }
+        }
+    }
+    private void insert(String token) {
+        int mask = table.length - 1;
+        int slot = token.hashCode() & mask;
+        while (table[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = token;
+        tokens++;
+    }
+}
@@ -24,6 +24,13 @@ public class Parser {
             throw new FileNotFoundException("File not found: " + inputFile);
         }
     }
+    /**
+     * Removes things after '//' and trims white spaces.
+     */
+    private static String stripComment(String line) {
+        int comment = line.indexOf("//");
+        return (comment < 0 ? line : line.substring(0, comment)).trim();
+    }
     /**
      * Checks if there are more lines un the input
      *
@@ -39,9 +46,9 @@ public class Parser {
      */
     public void advance() throws IOException {
         String line;
+        CurrentCommand = null; //Stays null if only blank lines and comments are left.
         while ((line = reader.readLine()) != null) {
-            //Removes things after '//' and trims white spaces.
-            line = line.split("//")[0].trim();
+            line = stripComment(line);
             if (!line.isEmpty()) {
                 CurrentCommand = line; //Sets the CurrentCommand and finishing the current advancing.
                 break;
@@ -135,7 +142,15 @@ public class Parser {
         //If the Command type is unsupported.
         throw new IllegalStateException("Command type does not support args2: " + CurrentCommand);
     }
-    public void close() {
-        // Close any resources
+    /**
+     * Closes the input file, if the parser opened one.
+     *
+     * @throws IOException if there is an error closing the file.
+     */
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
     }
 }
@@ -0,0 +1,13 @@
+package vmtranslator;
+
+/**
+ * An optimization pass run by the PassManager.
+ * VM-level passes implement VmPass and rewrite the parsed commands, assembly-level passes implement AsmPass and
+ * rewrite the generated lines.
+ */
+public interface Pass {
+    /**
+     * @return the name used to switch the pass on or off and in the statistics (e.g., "fuse").
+     */
+    String name();
+}
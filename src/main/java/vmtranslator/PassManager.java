@@ -0,0 +1,220 @@
+package vmtranslator;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+/**
+ * Runs an ordered list of optimization passes: the VM-level passes over the parsed commands, then the assembly-level
+ * passes over the generated lines. Every pass has an on/off switch, and the manager keeps its time and change count.
+ * The optimization levels select the passes:
+ * O0 runs none (the plain output), O1 fuses idioms, O2 also inlines multiplications and divisions by literals and
+ * runs the peephole pass (speed) and Os fuses, runs the peephole pass and shares the call and return frames (ROM size).
+ */
+public class PassManager {
+    private final List<Slot> slots = new ArrayList<>();
+    private IdiomFuser fuser;
+    /**
+     * A pass with its switch, its metrics and (for a VM pass) the commands it left for the next batch.
+     */
+    private static class Slot {
+        final Pass pass;
+        boolean enabled;
+        long nanos;
+        int asmChanges;
+        final List<VMCommand> pending = new ArrayList<>();
+
+        Slot(Pass pass) {
+            this.pass = pass;
+        }
+    }
+    /**
+     * Creates a manager with every known pass registered and the ones of the level switched on.
+     *
+     * @param level "O0", "O1", "O2" or "Os".
+     * @return the manager.
+     * @throws IllegalArgumentException if the level is unknown.
+     */
+    public static PassManager forLevel(String level) {
+        PassManager manager = new PassManager();
+        manager.register(new StrengthReductionPass());
+        manager.fuser = IdiomFuser.withDefaults();
+        manager.register(manager.fuser);
+        manager.register(new SharedFramesPass());
+        manager.register(new PeepholePass());
+        switch (level) {
+            case "O0" -> {
+            }
+            case "O1" -> manager.setEnabled("fuse", true);
+            case "O2" -> {
+                manager.setEnabled("strength-reduce", true);
+                manager.setEnabled("fuse", true);
+                manager.setEnabled("peephole", true);
+            }
+            case "Os" -> {
+                manager.setEnabled("fuse", true);
+                manager.setEnabled("peephole", true);
+                manager.setEnabled("shared-frames", true);
+            }
+            default -> throw new IllegalArgumentException("Unknown optimization level: -" + level);
+        }
+        return manager;
+    }
+    /**
+     * @param name a pass name.
+     * @return true if forLevel() registers a pass with this name.
+     */
+    static boolean isKnownPass(String name) {
+        return name.equals("strength-reduce") || name.equals("fuse") || name.equals("shared-frames")
+                || name.equals("peephole");
+    }
+    /**
+     * Adds a pass at the end of the list, switched off. VM passes always run before assembly passes.
+     *
+     * @param pass the pass to add.
+     */
+    public void register(Pass pass) {
+        if (!(pass instanceof VmPass) && !(pass instanceof AsmPass)) {
+            throw new IllegalArgumentException("A pass must be a VmPass or an AsmPass: " + pass.name());
+        }
+        slots.add(new Slot(pass));
+    }
+    /**
+     * Adds a pass right after another one, switched off.
+     *
+     * @param name the name of the pass to follow.
+     * @param pass the pass to add.
+     * @throws IllegalArgumentException if no pass has this name.
+     */
+    public void registerAfter(String name, Pass pass) {
+        register(pass);
+        slots.add(slots.indexOf(slot(name)) + 1, slots.remove(slots.size() - 1));
+    }
+    /**
+     * Switches a pass on or off.
+     *
+     * @param name the name of the pass.
+     * @param enabled true to run it.
+     * @throws IllegalArgumentException if no pass has this name.
+     */
+    public void setEnabled(String name, boolean enabled) {
+        slot(name).enabled = enabled;
+    }
+    /**
+     * @param name the name of the pass.
+     * @return true if the pass runs.
+     */
+    public boolean isEnabled(String name) {
+        return slot(name).enabled;
+    }
+    private Slot slot(String name) {
+        for (Slot slot : slots) {
+            if (slot.pass.name().equals(name)) {
+                return slot;
+            }
+        }
+        throw new IllegalArgumentException("Unknown pass: " + name);
+    }
+    /**
+     * @return the idiom fuser of the "fuse" pass, or null if it is switched off.
+     */
+    public IdiomFuser getFuser() {
+        return fuser != null && isEnabled("fuse") ? fuser : null;
+    }
+    /**
+     * @return true if at least one assembly pass runs, so the generated lines have to be collected.
+     */
+    public boolean hasAsmPasses() {
+        for (Slot slot : slots) {
+            if (slot.enabled && slot.pass instanceof AsmPass) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * Runs the enabled VM passes, in order, over a batch of commands.
+     * A pass is only run once it has at least its lookahead of commands, and it may keep fewer than that (the tail of
+     * the batch) until the next one, or until the batch is complete.
+     *
+     * @param commands the commands of the batch.
+     * @param complete true if no more commands of the file follow.
+     * @return the rewritten commands that are ready for the code generation.
+     */
+    public List<VMCommand> runVm(List<VMCommand> commands, boolean complete) {
+        return runVm(commands, complete, complete);
+    }
+    /**
+     * Runs the enabled VM passes over a batch of commands, where a pass that needs the whole program holds the
+     * commands until the end of the program.
+     *
+     * @param commands the commands of the batch.
+     * @param endOfFile true if no more commands of the file follow.
+     * @param endOfProgram true if no more commands follow at all.
+     * @return the rewritten commands that are ready for the code generation.
+     */
+    public List<VMCommand> runVm(List<VMCommand> commands, boolean endOfFile, boolean endOfProgram) {
+        for (Slot slot : slots) {
+            if (!slot.enabled || !(slot.pass instanceof VmPass pass)) {
+                continue;
+            }
+            long start = System.nanoTime();
+            List<VMCommand> input = commands;
+            if (!slot.pending.isEmpty()) {
+                slot.pending.addAll(commands);
+                input = slot.pending;
+            }
+            List<VMCommand> result = new ArrayList<>(input.size());
+            boolean complete = pass.wholeProgram() ? endOfProgram : endOfFile;
+            int consumed = 0;
+            if (complete || input.size() >= pass.lookahead()) {
+                consumed = pass.run(input, result, complete);
+                if (input.size() - consumed > (complete ? 0 : pass.lookahead() - 1)) {
+                    throw new IllegalStateException("The " + pass.name() + " pass kept more commands than it looks ahead");
+                }
+            }
+            if (input == slot.pending) {
+                slot.pending.subList(0, consumed).clear();
+            } else if (consumed < input.size()) {
+                slot.pending.addAll(input.subList(consumed, input.size()));
+            }
+            commands = result;
+            slot.nanos += System.nanoTime() - start;
+        }
+        return commands;
+    }
+    /**
+     * Runs the enabled assembly passes, in order, over a run of generated lines.
+     *
+     * @param lines the lines, rewritten in place.
+     */
+    public void runAsm(List<String> lines) {
+        for (Slot slot : slots) {
+            if (slot.enabled && slot.pass instanceof AsmPass pass) {
+                long start = System.nanoTime();
+                slot.asmChanges += pass.run(lines);
+                slot.nanos += System.nanoTime() - start;
+            }
+        }
+    }
+    /**
+     * Prints the time and the change count of every enabled pass, the ROM estimate of the pgo pass and the hit count of
+     * every idiom of the fuse pass.
+     *
+     * @param out the stream to print to.
+     */
+    public void printStats(PrintStream out) {
+        out.println("Pass stats:");
+        for (Slot slot : slots) {
+            if (slot.enabled) {
+                int changes = slot.pass instanceof VmPass pass ? pass.changes() : slot.asmChanges;
+                out.printf("  %-15s %10.3f ms %8d changes%n", slot.pass.name(), slot.nanos / 1e6, changes);
+                if (slot.pass instanceof ProfilePass pgo) {
+                    out.printf("  %-15s %10d ROM words estimated before the later passes%n", "", pgo.getEstimatedRom());
+                }
+            }
+        }
+        if (getFuser() != null) {
+            fuser.printStats(out);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package vmtranslator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+/**
+ * Assembly-level peephole pass: replaces short runs of instructions with cheaper ones that have the same effect.
+ * A run never crosses a label, since a label may be jumped to. Comment lines and source markers in the middle of a
+ * run are skipped and left in place.
+ * The rules rely on D being dead at the start of every VM command, which holds for all the code the CodeWriter emits.
+ */
+public class PeepholePass implements AsmPass {
+    private final List<Rule> rules = new ArrayList<>();
+    /**
+     * A run of instructions and its replacement, which is never longer.
+     */
+    private record Rule(String[] pattern, String[] replacement) {
+    }
+
+    public PeepholePass() {
+        //A push followed by a pop: SP goes up and straight back down.
+        rules.add(new Rule(new String[]{"@SP", "M=M+1", "@SP", "AM=M-1"}, new String[]{"@SP", "A=M"}));
+        //What is left of it: the value just stored at RAM[SP] is read back into D, where it still is.
+        rules.add(new Rule(new String[]{"@SP", "A=M", "M=D", "@SP", "A=M", "D=M"}, new String[]{"@SP", "A=M", "M=D"}));
+        //push constant 0/1: D is dead once the push is done, so the constant goes straight to memory.
+        rules.add(new Rule(new String[]{"@0", "D=A", "@SP", "A=M", "M=D", "@SP", "M=M+1"},
+                new String[]{"@SP", "A=M", "M=0", "@SP", "M=M+1"}));
+        rules.add(new Rule(new String[]{"@1", "D=A", "@SP", "A=M", "M=D", "@SP", "M=M+1"},
+                new String[]{"@SP", "A=M", "M=1", "@SP", "M=M+1"}));
+    }
+    @Override
+    public String name() {
+        return "peephole";
+    }
+    @Override
+    public int run(List<String> lines) {
+        int changes = 0;
+        boolean changed = true;
+        while (changed) { //A rewrite may open a window for another rule.
+            changed = false;
+            for (int i = 0; i < lines.size(); i++) {
+                if (!isInstruction(lines.get(i))) {
+                    continue;
+                }
+                for (Rule rule : rules) {
+                    if (apply(lines, i, rule)) {
+                        changes++;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+            lines.removeIf(Objects::isNull); //Removed lines are nulled during the sweep, so a removal costs no shift.
+        }
+        return changes;
+    }
+    /**
+     * Tries a rule at the given line, and rewrites the lines if it matches. The lines it drops are set to null.
+     */
+    private boolean apply(List<String> lines, int start, Rule rule) {
+        if (!lines.get(start).equals(rule.pattern()[0])) {
+            return false;
+        }
+        int[] at = new int[rule.pattern().length];
+        int line = start;
+        for (int k = 0; k < at.length; k++) {
+            while (line < lines.size() && isTransparent(lines.get(line))) {
+                line++;
+            }
+            if (line >= lines.size() || !lines.get(line).equals(rule.pattern()[k])) {
+                return false; //Also stops at a label.
+            }
+            at[k] = line++;
+        }
+        for (int k = 0; k < rule.replacement().length; k++) {
+            lines.set(at[k], rule.replacement()[k]);
+        }
+        for (int k = rule.replacement().length; k < at.length; k++) {
+            lines.set(at[k], null);
+        }
+        return true;
+    }
+    private static boolean isTransparent(String line) {
+        return line == null || line.startsWith("//") || (!line.isEmpty() && line.charAt(0) == AsmLineWriter.MARKER);
+    }
+    private static boolean isInstruction(String line) {
+        return line != null && !line.isEmpty() && !line.startsWith("(") && !isTransparent(line);
+    }
+}
@@ -0,0 +1,314 @@
+package vmtranslator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+/**
+ * Translates vm files with four threads connected by bounded ring buffers, so reading and writing overlap with the
+ * CPU work:
+ * the reader reads each file in byte chunks, the parser cuts the chunks into lines and parses them into batches of
+ * commands, the code generator runs the CodeWriter over the batches into character chunks and the writer writes
+ * the chunks to the output file.
+ * Every ring buffer is bounded, so a slow stage holds back the ones before it and the memory stays bounded.
+ */
+public class PipelinedTranslator {
+    private static final int READ_CHUNK = 64 * 1024;
+    private static final int BATCH_SIZE = 512;
+    private static final int OUTPUT_CHUNK = 64 * 1024;
+    private static final int RING_SIZE = 16;
+    private static final Chunk END_OF_INPUT = new Chunk(null, new byte[0], 0, 0, true);
+    private static final Batch END_OF_COMMANDS = new Batch(null, List.of(), 0, 0, 0, true);
+    private static final byte[] END_OF_OUTPUT = new byte[0];
+
+    private final SpscRingBuffer<Chunk> chunks = new SpscRingBuffer<>(RING_SIZE);
+    private final SpscRingBuffer<Batch> batches = new SpscRingBuffer<>(RING_SIZE * 4);
+    private final SpscRingBuffer<byte[]> output = new SpscRingBuffer<>(RING_SIZE);
+    private final String asmFile;
+    private final TranslationStats stats;
+    private final ChunkWriter chunkWriter = new ChunkWriter();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final List<Thread> threads = new ArrayList<>();
+    /**
+     * A piece of a vm file. The last chunk of a file carries the time spent reading it.
+     */
+    private record Chunk(String fileName, byte[] data, int length, long readNanos, boolean lastOfFile) {
+    }
+    /**
+     * Parsed commands of a vm file. The last batch of a file carries its totals.
+     */
+    private record Batch(String fileName, List<VMCommand> commands, int fileCommands, long readNanos,
+                         long parseNanos, boolean lastOfFile) {
+    }
+    /**
+     * @param asmFile the path of the output file.
+     * @param stats the metrics of the run, each stage adds its busy time to its phase.
+     */
+    public PipelinedTranslator(String asmFile, TranslationStats stats) {
+        this.asmFile = asmFile;
+        this.stats = stats;
+    }
+    /**
+     * Returns the stream the CodeWriter should write into, it feeds the writer stage.
+     *
+     * @return the output stream of the code generator stage.
+     */
+    public Writer getOutput() {
+        return chunkWriter;
+    }
+    /**
+     * Runs the pipeline over the given files and waits for it to finish. The code writer is closed at the end.
+     *
+     * @param vmFiles the files to translate, in order.
+     * @param codeWriter a CodeWriter that writes into getOutput().
+     * @param passes the passes of the optimization level, the VM passes run in the code generator stage.
+     * @param bootstrap true to start with the bootstrap code.
+     * @throws IOException if one of the stages failed.
+     */
+    public void translate(List<File> vmFiles, CodeWriter codeWriter, PassManager passes, boolean bootstrap) throws IOException {
+        start("vm-reader", () -> read(vmFiles));
+        start("vm-parser", this::parse);
+        start("vm-codegen", () -> generate(codeWriter, passes, bootstrap));
+        start("vm-writer", this::write);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort();
+                throw new IOException("Interrupted while translating", e);
+            }
+        }
+        Throwable error = failure.get();
+        if (error instanceof IOException io) {
+            throw io;
+        }
+        if (error != null) {
+            throw new IOException("Pipelined translation failed: " + error.getMessage(), error);
+        }
+    }
+    private interface Stage {
+        void run() throws Exception;
+    }
+    /**
+     * Starts a stage thread. If a stage fails, the ring buffers are aborted so no other stage waits forever.
+     */
+    private void start(String name, Stage stage) {
+        Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (Throwable e) {
+                //The first failure is the cause, the others are stages that were aborted because of it.
+                if (failure.compareAndSet(null, e)) {
+                    abort();
+                }
+            }
+        }, name);
+        threads.add(thread);
+        thread.start();
+    }
+    private void abort() {
+        chunks.abort();
+        batches.abort();
+        output.abort();
+    }
+    /**
+     * Reader stage: reads every file in fixed size byte chunks.
+     */
+    private void read(List<File> vmFiles) throws IOException, InterruptedException {
+        for (File vmFile : vmFiles) {
+            long readNanos = 0;
+            try (InputStream in = new FileInputStream(vmFile)) {
+                while (true) {
+                    TranslationStats.PhaseTimer timer = stats.startPhase(TranslationStats.Phase.READ, vmFile.getName());
+                    byte[] data = new byte[READ_CHUNK];
+                    int length = in.readNBytes(data, 0, data.length);
+                    readNanos += timer.stop();
+                    if (length < data.length) {
+                        chunks.put(new Chunk(vmFile.getName(), data, length, readNanos, true));
+                        break;
+                    }
+                    chunks.put(new Chunk(vmFile.getName(), data, length, 0, false));
+                }
+            }
+        }
+        chunks.put(END_OF_INPUT);
+    }
+    /**
+     * Parser stage: cuts the chunks into lines (a line may cross chunks) and parses them with the ArenaParser into
+     * batches of commands.
+     */
+    private void parse() throws InterruptedException {
+        byte[] line = new byte[256];
+        ByteBuffer lineBytes = ByteBuffer.wrap(line);
+        int lineLength = 0;
+        int lineNumber = 0;
+        int fileCommands = 0;
+        long parseNanos = 0;
+        ArenaParser parser = null;
+        List<VMCommand> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            Chunk chunk = chunks.take();
+            if (chunk == END_OF_INPUT) {
+                batches.put(END_OF_COMMANDS);
+                return;
+            }
+            TranslationStats.PhaseTimer timer = stats.startPhase(TranslationStats.Phase.PARSE, chunk.fileName());
+            if (parser == null) {
+                parser = ArenaParser.forLines(chunk.fileName());
+            }
+            byte[] data = chunk.data();
+            for (int i = 0; i <= chunk.length(); i++) {
+                boolean endOfLine = i < chunk.length() ? data[i] == '\n' : chunk.lastOfFile() && lineLength > 0;
+                if (!endOfLine) {
+                    if (i == chunk.length()) {
+                        break;
+                    }
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                        lineBytes = ByteBuffer.wrap(line);
+                    }
+                    line[lineLength++] = data[i];
+                    continue;
+                }
+                lineNumber++;
+                VMCommand command = parser.parseLine(lineBytes, 0, lineLength, lineNumber);
+                lineLength = 0;
+                if (command != null) {
+                    batch.add(command);
+                    fileCommands++;
+                    if (batch.size() == BATCH_SIZE) {
+                        parseNanos += timer.stop();
+                        batches.put(new Batch(chunk.fileName(), batch, 0, 0, 0, false));
+                        timer = stats.startPhase(TranslationStats.Phase.PARSE, chunk.fileName());
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+            }
+            parseNanos += timer.stop();
+            if (chunk.lastOfFile()) {
+                batches.put(new Batch(chunk.fileName(), batch, fileCommands, chunk.readNanos(), parseNanos, true));
+                batch = new ArrayList<>(BATCH_SIZE);
+                parser = null;
+                lineNumber = 0;
+                fileCommands = 0;
+                parseNanos = 0;
+            }
+        }
+    }
+    /**
+     * Code generator stage: runs the VM passes over the batches and writes them with the CodeWriter. A pass that
+     * looks ahead keeps the tail of a batch until the next one.
+     * Its busy time is measured on its own thread, the waits on a full output ring left out.
+     */
+    private void generate(CodeWriter codeWriter, PassManager passes, boolean bootstrap) throws IOException, InterruptedException {
+        try (codeWriter) {
+            if (bootstrap) {
+                codeWriter.writeBootstrap();
+            }
+            String currentFile = null;
+            long codegenNanos = 0;
+            while (true) {
+                Batch batch = batches.take();
+                if (batch == END_OF_COMMANDS) {
+                    return;
+                }
+                TranslationStats.PhaseTimer timer = stats.startPhase(TranslationStats.Phase.CODEGEN, batch.fileName());
+                long blockedBefore = chunkWriter.blockedNanos;
+                if (!batch.fileName().equals(currentFile)) {
+                    currentFile = batch.fileName();
+                    if (bootstrap) { //Directory mode, as in DirTranslator.
+                        System.out.println("Translating: " + currentFile);
+                    }
+                    codeWriter.setFileName(currentFile);
+                }
+                for (VMCommand command : passes.runVm(batch.commands(), batch.lastOfFile())) {
+                    codeWriter.writeCommand(command);
+                }
+                //The time spent waiting for room in the output ring is not codegen work.
+                codegenNanos += timer.stop(chunkWriter.blockedNanos - blockedBefore);
+                if (batch.lastOfFile()) {
+                    stats.addFile(currentFile, batch.fileCommands(), batch.readNanos(), batch.parseNanos(), codegenNanos);
+                    codegenNanos = 0;
+                    currentFile = null;
+                }
+            }
+        }
+    }
+    /**
+     * Writer stage: writes the chunks to the output file.
+     */
+    private void write() throws IOException, InterruptedException {
+        try (OutputStream out = new FileOutputStream(asmFile)) {
+            while (true) {
+                byte[] data = output.take();
+                if (data == END_OF_OUTPUT) {
+                    break;
+                }
+                long start = stats.isTimed() ? System.nanoTime() : 0;
+                out.write(data);
+                stats.addWrite(stats.isTimed() ? System.nanoTime() - start : 0, data.length);
+            }
+        }
+    }
+
+    /**
+     * The stream of the code generator stage: collects characters and hands them to the writer stage in chunks.
+     * Closing it ends the output.
+     */
+    private class ChunkWriter extends Writer {
+        private final StringBuilder buffer = new StringBuilder(OUTPUT_CHUNK);
+        private long blockedNanos; //Time the code generator thread waited for room in the ring, read by that thread.
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            buffer.append(chars, offset, length);
+            if (buffer.length() >= OUTPUT_CHUNK) {
+                publish();
+            }
+        }
+        @Override
+        public void write(String text, int offset, int length) throws IOException {
+            buffer.append(text, offset, offset + length);
+            if (buffer.length() >= OUTPUT_CHUNK) {
+                publish();
+            }
+        }
+        private void publish() throws IOException {
+            if (buffer.length() == 0) {
+                return;
+            }
+            byte[] data = buffer.toString().getBytes(StandardCharsets.UTF_8);
+            buffer.setLength(0);
+            put(data);
+        }
+        private void put(byte[] data) throws IOException {
+            long start = System.nanoTime();
+            try {
+                output.put(data);
+                blockedNanos += System.nanoTime() - start;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing", e);
+            }
+        }
+        @Override
+        public void flush() throws IOException {
+            publish();
+        }
+        @Override
+        public void close() throws IOException {
+            publish();
+            put(END_OF_OUTPUT);
+        }
+    }
+}
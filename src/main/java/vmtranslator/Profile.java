@@ -0,0 +1,110 @@
+package vmtranslator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+/**
+ * Execution counts of a VM program: how many times each function was called and each call site, goto and if-goto was
+ * run. A call site or a branch is named by its place in the source, "File.vm:line".
+ * The VMInterpreter writes it (--write-profile), the translator reads it for profile-guided optimization (--profile).
+ * Line format (tab separated): kind ("function", "call" or "branch"), name, count.
+ */
+public class Profile {
+    private final Map<String, Long> functionCalls = new LinkedHashMap<>();
+    private final Map<String, Long> siteCounts = new LinkedHashMap<>();
+    private final Map<String, Long> branchCounts = new LinkedHashMap<>();
+    /**
+     * Reads a profile file.
+     *
+     * @param profileFile the path of the file.
+     * @return the profile.
+     * @throws IOException if there is an error reading the file.
+     * @throws IllegalArgumentException if a line is not in the profile format.
+     */
+    public static Profile load(String profileFile) throws IOException {
+        Profile profile = new Profile();
+        try (BufferedReader reader = new BufferedReader(new FileReader(profileFile))) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                try {
+                    if (fields.length != 3) {
+                        throw new NumberFormatException();
+                    }
+                    long count = Long.parseLong(fields[2]);
+                    switch (fields[0]) {
+                        case "function" -> profile.addFunction(fields[1], count);
+                        case "call" -> profile.siteCounts.merge(fields[1], count, Long::sum);
+                        case "branch" -> profile.branchCounts.merge(fields[1], count, Long::sum);
+                        default -> throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid profile line " + number + " in " + profileFile + ": " + line);
+                }
+            }
+        }
+        return profile;
+    }
+    /**
+     * Writes the profile file.
+     *
+     * @param profileFile the path of the file.
+     * @throws IOException if there is an error writing the file.
+     */
+    public void write(String profileFile) throws IOException {
+        try (Writer writer = new BufferedWriter(new FileWriter(profileFile))) {
+            writer.write("# kind\tname\tcount\n");
+            for (Map.Entry<String, Long> entry : functionCalls.entrySet()) {
+                writer.write("function\t" + entry.getKey() + "\t" + entry.getValue() + "\n");
+            }
+            for (Map.Entry<String, Long> entry : siteCounts.entrySet()) {
+                writer.write("call\t" + entry.getKey() + "\t" + entry.getValue() + "\n");
+            }
+            for (Map.Entry<String, Long> entry : branchCounts.entrySet()) {
+                writer.write("branch\t" + entry.getKey() + "\t" + entry.getValue() + "\n");
+            }
+        }
+    }
+    public void addFunction(String functionName, long calls) {
+        functionCalls.merge(functionName, calls, Long::sum);
+    }
+    public void addSite(String fileName, int lineNumber, long count) {
+        siteCounts.merge(siteName(fileName, lineNumber), count, Long::sum);
+    }
+    public void addBranch(String fileName, int lineNumber, long count) {
+        branchCounts.merge(siteName(fileName, lineNumber), count, Long::sum);
+    }
+    /**
+     * @return the number of calls of the function, 0 if it is not in the profile.
+     */
+    public long getFunctionCalls(String functionName) {
+        return functionCalls.getOrDefault(functionName, 0L);
+    }
+    /**
+     * @param call a call command, with its file name and line number.
+     * @return the number of times the call was run, 0 if it is not in the profile.
+     */
+    public long getSiteCount(VMCommand call) {
+        return siteCounts.getOrDefault(siteName(call.getFileName(), call.getLineNumber()), 0L);
+    }
+    /**
+     * @param branch a goto or if-goto command, with its file name and line number.
+     * @return the number of times the jump was run (taken or not), 0 if it is not in the profile.
+     */
+    public long getBranchCount(VMCommand branch) {
+        return branchCounts.getOrDefault(siteName(branch.getFileName(), branch.getLineNumber()), 0L);
+    }
+    private static String siteName(String fileName, int lineNumber) {
+        return fileName + ":" + lineNumber;
+    }
+}
@@ -0,0 +1,333 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+/**
+ * VM-level pass for profile-guided optimization: lays out the loops and branches that ran so the hot path falls
+ * through (see BlockLayout), then picks, per call site and per function, how calls and returns are emitted, from the
+ * execution counts of a Profile and within a ROM budget.
+ * It starts from the smallest code (every call and return jumps to the shared routines, as in the shared-frames
+ * pass) and then spends the ROM left in the budget on the upgrades that save the most cycles per ROM word:
+ * an inline call sequence at a hot site, an inline return in a hot function, or a hot callee inlined at the site.
+ * A callee is inlined only if it is a short straight-line leaf (pushes, pops and arithmetic ending with its only
+ * return) that does not change THIS/THAT. Its arguments and locals then live on the caller's stack and are reached
+ * relative to SP.
+ * The sizes are measured by running the CodeWriter into a counter, and the cycles of the call and return code are
+ * its sizes, since that code is straight-line. The later passes only make the code smaller.
+ * Needs the whole program at once, since a callee may be in another file.
+ */
+public class ProfilePass implements VmPass {
+    private static final int MAX_INLINE_BODY = 32; //Commands of a callee body that may be inlined.
+    private final Profile profile;
+    private final int romBudget;
+    private int changes;
+    private int estimatedRom;
+    /**
+     * A way to emit a call site or the returns of a function, bought for rom words and saving cycles.
+     */
+    private record Upgrade(int site, String function, boolean inlineCallee, long romDelta, long savedCycles) {
+        double value() {
+            return romDelta <= 0 ? Double.MAX_VALUE : (double) savedCycles / romDelta;
+        }
+    }
+    /**
+     * @param profile the execution counts.
+     * @param romBudget the ROM words the whole program (with the bootstrap) may take.
+     */
+    public ProfilePass(Profile profile, int romBudget) {
+        this.profile = profile;
+        this.romBudget = romBudget;
+    }
+    @Override
+    public String name() {
+        return "pgo";
+    }
+    @Override
+    public int lookahead() {
+        return Integer.MAX_VALUE;
+    }
+    @Override
+    public boolean wholeProgram() {
+        return true;
+    }
+    @Override
+    public int run(List<VMCommand> commands, List<VMCommand> result, boolean complete) {
+        if (!complete) {
+            return 0; //Waits for the whole program.
+        }
+        int consumed = commands.size();
+        BlockLayout layout = new BlockLayout(commands, profile);
+        commands = layout.apply();
+        changes += layout.changes();
+        Map<String, Integer> functionStarts = new HashMap<>();
+        for (int i = 0; i < commands.size(); i++) {
+            if (commands.get(i).getType().equals("C_FUNCTION")) {
+                functionStarts.put(commands.get(i).getArg1(), i);
+            }
+        }
+        //The smallest code: every call and return shared.
+        List<VMCommand> shared = new ArrayList<>(commands.size());
+        for (VMCommand command : commands) {
+            shared.add(switch (command.getType()) {
+                case "C_CALL" -> command.withType("C_CALL_SHARED");
+                case "C_RETURN" -> command.withType("C_RETURN_SHARED");
+                default -> command;
+            });
+        }
+        long rom = romSize(shared, true) + bootstrapSize();
+        //The candidate upgrades and what they cost and save.
+        VMCommand sampleCall = new VMCommand("C_CALL", "Sys.init", 0);
+        int inlineCall = romSize(List.of(sampleCall), false);
+        int sharedCall = romSize(List.of(sampleCall.withType("C_CALL_SHARED")), false);
+        int sharedCallCycles = romSize(List.of(sampleCall.withType("C_CALL_SHARED")), true);
+        VMCommand sampleReturn = new VMCommand("C_RETURN", null, 0);
+        int inlineReturn = romSize(List.of(sampleReturn), false);
+        int sharedReturn = romSize(List.of(sampleReturn.withType("C_RETURN_SHARED")), false);
+        int sharedReturnCycles = romSize(List.of(sampleReturn.withType("C_RETURN_SHARED")), true);
+        List<Upgrade> upgrades = new ArrayList<>();
+        Map<String, Integer> returns = new HashMap<>();
+        String currentFunction = "";
+        for (int i = 0; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            switch (command.getType()) {
+                case "C_FUNCTION" -> currentFunction = command.getArg1();
+                case "C_RETURN" -> returns.merge(currentFunction, 1, Integer::sum);
+                case "C_CALL" -> {
+                    long count = profile.getSiteCount(command);
+                    if (count == 0) {
+                        continue;
+                    }
+                    upgrades.add(new Upgrade(i, null, false, inlineCall - sharedCall,
+                            count * (sharedCallCycles - inlineCall)));
+                    Integer start = functionStarts.get(command.getArg1());
+                    List<VMCommand> inlined = start == null ? null : inline(commands, start, command);
+                    if (inlined != null) {
+                        int size = romSize(inlined, false);
+                        //The function entry and the body without its return, the commands the inlined code replaces.
+                        int bodyLength = inlined.size() - commands.get(start).getArg2();
+                        int callee = romSize(commands.subList(start, start + bodyLength), false);
+                        long saved = sharedCallCycles + callee + sharedReturnCycles - size;
+                        upgrades.add(new Upgrade(i, null, true, size - sharedCall, count * saved));
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        for (Map.Entry<String, Integer> entry : returns.entrySet()) {
+            long calls = profile.getFunctionCalls(entry.getKey());
+            if (calls > 0) {
+                upgrades.add(new Upgrade(-1, entry.getKey(), false, (long) entry.getValue() * (inlineReturn - sharedReturn),
+                        calls * (sharedReturnCycles - inlineReturn)));
+            }
+        }
+        //Greedy: the most cycles per ROM word first, while the budget allows.
+        upgrades.sort(Comparator.comparingDouble(Upgrade::value).reversed());
+        Map<Integer, Upgrade> sites = new HashMap<>();
+        Map<String, Upgrade> functions = new HashMap<>();
+        for (Upgrade upgrade : upgrades) {
+            if (upgrade.savedCycles() <= 0 || rom + upgrade.romDelta() > romBudget) {
+                continue;
+            }
+            if (upgrade.function() != null) {
+                functions.put(upgrade.function(), upgrade);
+            } else if (!sites.containsKey(upgrade.site())) {
+                sites.put(upgrade.site(), upgrade);
+            } else {
+                continue; //The site already has a better upgrade.
+            }
+            rom += upgrade.romDelta();
+            changes++;
+        }
+        estimatedRom = (int) rom;
+        //Emits the chosen forms.
+        currentFunction = "";
+        for (int i = 0; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            switch (command.getType()) {
+                case "C_FUNCTION" -> {
+                    currentFunction = command.getArg1();
+                    result.add(command);
+                }
+                case "C_RETURN" -> result.add(functions.containsKey(currentFunction) ? command
+                        : command.withType("C_RETURN_SHARED"));
+                case "C_CALL" -> {
+                    Upgrade upgrade = sites.get(i);
+                    if (upgrade == null) {
+                        result.add(command.withType("C_CALL_SHARED"));
+                    } else if (upgrade.inlineCallee()) {
+                        result.addAll(inline(commands, functionStarts.get(command.getArg1()), command));
+                    } else {
+                        result.add(command);
+                    }
+                }
+                default -> result.add(command);
+            }
+        }
+        return consumed;
+    }
+    @Override
+    public int changes() {
+        return changes;
+    }
+    /**
+     * @return the ROM words of the program as estimated by the last run.
+     */
+    public int getEstimatedRom() {
+        return estimatedRom;
+    }
+    /**
+     * Returns the commands that replace a call with the body of the callee, or null if the callee cannot be inlined.
+     * Locals are pushed as zeros over the arguments, and every argument and local access becomes a stack access at
+     * the depth it has at that point.
+     */
+    private static List<VMCommand> inline(List<VMCommand> commands, int start, VMCommand call) {
+        VMCommand function = commands.get(start);
+        int nArgs = call.getArg2();
+        int nLocals = function.getArg2();
+        List<VMCommand> result = new ArrayList<>();
+        for (int i = 0; i < nLocals; i++) {
+            result.add(new VMCommand("C_PUSH", "constant", 0, function.getFileName(), function.getLineNumber()));
+        }
+        int depth = 0; //Words pushed by the body over its locals.
+        for (int i = start + 1; i < commands.size() && i <= start + MAX_INLINE_BODY; i++) {
+            VMCommand command = commands.get(i);
+            String segment = command.getArg1();
+            int index = command.getArg2();
+            switch (command.getType()) {
+                case "C_PUSH", "C_POP" -> {
+                    boolean push = command.getType().equals("C_PUSH");
+                    if (!push) {
+                        depth--;
+                    }
+                    if (depth < 0 || (!push && segment.equals("pointer"))) {
+                        return null; //Pops below the frame, or changes THIS/THAT that a return would restore.
+                    }
+                    int offset = switch (segment) {
+                        case "argument" -> index < nArgs ? nArgs + nLocals + depth - index : -1;
+                        case "local" -> index < nLocals ? nLocals + depth - index : -1;
+                        default -> 0;
+                    };
+                    if (offset < 0) {
+                        return null;
+                    }
+                    result.add(offset == 0 ? command : VMCommand.fused(new StackAccess(push, offset), List.of(command)));
+                    if (push) {
+                        depth++;
+                    }
+                }
+                case "C_ARITHMETIC" -> {
+                    if (!command.getArg1().matches("neg|not")) {
+                        depth--;
+                    }
+                    if (depth < 1) {
+                        return null;
+                    }
+                    result.add(command);
+                }
+                case "C_RETURN" -> {
+                    if (depth != 1) {
+                        return null;
+                    }
+                    result.add(VMCommand.fused(new InlineReturn(nArgs + nLocals), List.of(command)));
+                    return result;
+                }
+                default -> {
+                    return null; //Labels, jumps and calls: not a straight-line leaf.
+                }
+            }
+        }
+        return null;
+    }
+    /**
+     * Counts the ROM words the CodeWriter emits for the commands, with the shared routines if asked for.
+     */
+    private static int romSize(List<VMCommand> commands, boolean withRoutines) {
+        AsmLineWriter counter = new AsmLineWriter(Writer.nullWriter(), null);
+        CodeWriter codeWriter = new CodeWriter(counter);
+        codeWriter.setComments(false);
+        try {
+            for (VMCommand command : commands) {
+                codeWriter.writeCommand(command);
+            }
+            if (withRoutines) {
+                codeWriter.finish();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error measuring the code size", e);
+        }
+        return counter.getRomAddress();
+    }
+    private static int bootstrapSize() {
+        AsmLineWriter counter = new AsmLineWriter(Writer.nullWriter(), null);
+        CodeWriter codeWriter = new CodeWriter(counter);
+        codeWriter.setComments(false);
+        codeWriter.writeBootstrap();
+        return counter.getRomAddress();
+    }
+
+    /**
+     * push/pop argument i or local j of an inlined callee, as a stack access at a fixed depth below SP.
+     */
+    static class StackAccess implements Idiom {
+        private final boolean push;
+        private final int depth;
+
+        StackAccess(boolean push, int depth) {
+            this.push = push;
+            this.depth = depth;
+        }
+        @Override
+        public String name() {
+            return push ? "stack-push" : "stack-pop";
+        }
+        @Override
+        public int length() {
+            return 1;
+        }
+        @Override
+        public boolean matches(List<VMCommand> commands, int start) {
+            return false; //Made by the ProfilePass only, which knows the depth.
+        }
+        @Override
+        public void emit(CodeWriter codeWriter, List<VMCommand> parts) throws IOException {
+            if (push) {
+                codeWriter.writeStackPush(depth);
+            } else {
+                codeWriter.writeStackPop(depth);
+            }
+        }
+    }
+
+    /**
+     * The return of an inlined callee.
+     */
+    static class InlineReturn implements Idiom {
+        private final int frame;
+
+        InlineReturn(int frame) {
+            this.frame = frame;
+        }
+        @Override
+        public String name() {
+            return "inline-return";
+        }
+        @Override
+        public int length() {
+            return 1;
+        }
+        @Override
+        public boolean matches(List<VMCommand> commands, int start) {
+            return false; //Made by the ProfilePass only.
+        }
+        @Override
+        public void emit(CodeWriter codeWriter, List<VMCommand> parts) throws IOException {
+            codeWriter.writeInlineReturn(frame);
+        }
+    }
+}
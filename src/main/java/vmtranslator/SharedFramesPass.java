@@ -0,0 +1,41 @@
+package vmtranslator;
+
+import java.util.List;
+/**
+ * VM-level pass for small ROM: turns every call and return into a jump to one shared routine that builds or tears
+ * down the frame, instead of expanding the frame code at every site.
+ * A call site shrinks from about 44 instructions to 13, a return from about 40 to 2, for a few more cycles each.
+ */
+public class SharedFramesPass implements VmPass {
+    private int changes;
+
+    @Override
+    public String name() {
+        return "shared-frames";
+    }
+    @Override
+    public int lookahead() {
+        return 1;
+    }
+    @Override
+    public int run(List<VMCommand> commands, List<VMCommand> result, boolean complete) {
+        for (VMCommand command : commands) {
+            switch (command.getType()) {
+                case "C_CALL" -> {
+                    result.add(command.withType("C_CALL_SHARED"));
+                    changes++;
+                }
+                case "C_RETURN" -> {
+                    result.add(command.withType("C_RETURN_SHARED"));
+                    changes++;
+                }
+                default -> result.add(command);
+            }
+        }
+        return commands.size();
+    }
+    @Override
+    public int changes() {
+        return changes;
+    }
+}
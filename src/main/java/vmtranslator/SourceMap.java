@@ -0,0 +1,61 @@
+package vmtranslator;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+/**
+ * Writes the VM-to-ROM source map: one line per VM command with the ROM address range it was translated to.
+ * Each entry is written as soon as the next one starts, so the map is produced while emitting, without a second pass.
+ * Line format (tab separated, the end address is exclusive): start, end, file, line, function, command.
+ */
+public class SourceMap implements AutoCloseable {
+    private final Writer writer;
+    private int pendingStart = -1;
+    private String pendingEntry;
+    /**
+     * Opens the source map file.
+     *
+     * @param mapFile the path of the output, usually next to the '.asm' file.
+     * @throws IOException if there is an error creating the file.
+     */
+    public SourceMap(String mapFile) throws IOException {
+        writer = new BufferedWriter(new FileWriter(mapFile));
+        writer.write("# start\tend\tfile\tline\tfunction\tcommand\n");
+    }
+    /**
+     * Starts a new entry at the given ROM address, which ends the previous one.
+     *
+     * @param romAddress the address of the first instruction of the entry.
+     * @param entry the file, line, function and command, tab separated.
+     * @throws IOException if there is an error writing the file.
+     */
+    public void mark(int romAddress, String entry) throws IOException {
+        flushPending(romAddress);
+        pendingStart = romAddress;
+        pendingEntry = entry;
+    }
+    private void flushPending(int endAddress) throws IOException {
+        if (pendingEntry != null) {
+            writer.write(pendingStart + "\t" + endAddress + "\t" + pendingEntry + "\n");
+            pendingEntry = null;
+        }
+    }
+    /**
+     * Ends the last entry and closes the file.
+     *
+     * @param romAddress the address after the last instruction.
+     * @throws IOException if there is an error writing the file.
+     */
+    public void close(int romAddress) throws IOException {
+        try {
+            flushPending(romAddress);
+        } finally {
+            writer.close();
+        }
+    }
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
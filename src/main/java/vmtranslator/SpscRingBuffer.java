@@ -0,0 +1,93 @@
+package vmtranslator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+/**
+ * A bounded lock-free ring buffer between exactly one producer thread and one consumer thread.
+ * put() waits while the buffer is full, which is the backpressure that keeps the pipeline memory bounded.
+ * Waiting spins briefly, then yields (so the other side can run on a busy machine) and then parks, and gives up with
+ * an InterruptedException when the thread is interrupted or the buffer is aborted (a stage on the other side failed).
+ *
+ * @param <T> the type of the items.
+ */
+class SpscRingBuffer<T> {
+    private static final int SPINS = 32;
+    private static final int YIELDS = 8;
+    private final Object[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); //Next slot to take, written only by the consumer.
+    private final AtomicLong tail = new AtomicLong(); //Next slot to put, written only by the producer.
+    private long cachedHead; //The producer's last view of head.
+    private long cachedTail; //The consumer's last view of tail.
+    private volatile boolean aborted;
+    /**
+     * @param capacity the number of slots, rounded up to a power of two.
+     */
+    SpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Object[size];
+        mask = size - 1;
+    }
+    /**
+     * Adds an item, waiting while the buffer is full. Called only by the producer thread.
+     *
+     * @param item the item, not null.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    void put(T item) throws InterruptedException {
+        long t = tail.get();
+        int idle = 0;
+        while (t - cachedHead >= slots.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= slots.length) {
+                idle = idle(idle);
+            }
+        }
+        slots[(int) (t & mask)] = item;
+        tail.lazySet(t + 1); //Publishes the slot to the consumer.
+    }
+    /**
+     * Removes the oldest item, waiting while the buffer is empty. Called only by the consumer thread.
+     *
+     * @return the item.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    @SuppressWarnings("unchecked")
+    T take() throws InterruptedException {
+        long h = head.get();
+        int idle = 0;
+        while (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h >= cachedTail) {
+                idle = idle(idle);
+            }
+        }
+        int index = (int) (h & mask);
+        T item = (T) slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1); //Frees the slot for the producer.
+        return item;
+    }
+    /**
+     * Makes every waiting (and future waiting) put() and take() fail, so no stage waits forever for a failed one.
+     */
+    void abort() {
+        aborted = true;
+    }
+    private int idle(int idle) throws InterruptedException {
+        if (aborted) {
+            throw new InterruptedException("Ring buffer aborted");
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (idle < SPINS) {
+            Thread.onSpinWait();
+        } else if (idle < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50_000);
+        }
+        return idle + 1;
+    }
+}
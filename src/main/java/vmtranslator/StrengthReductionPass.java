@@ -0,0 +1,101 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.util.List;
+/**
+ * VM-level pass for speed: replaces a multiplication or division by a literal with inline code, instead of a call to
+ * the OS's Math.multiply (a 16 step loop) or Math.divide and the frame that comes with the call.
+ * Matches push constant k / call Math.multiply 2 for any k, and push constant k / call Math.divide 2 when k is a
+ * power of two, which jumps to the CodeWriter's shared divide routine. It relies on Math being the standard OS class:
+ * a program's own Math.multiply or Math.divide is not called at these sites.
+ */
+public class StrengthReductionPass implements VmPass {
+    private static final Idiom MULTIPLY = new MultiplyByConstant();
+    private static final Idiom DIVIDE = new DivideByPowerOfTwo();
+    private int changes;
+
+    @Override
+    public String name() {
+        return "strength-reduce";
+    }
+    @Override
+    public int lookahead() {
+        return 2;
+    }
+    @Override
+    public int run(List<VMCommand> commands, List<VMCommand> result, boolean complete) {
+        int i = 0;
+        while (i < commands.size() && (complete || i + 2 <= commands.size())) {
+            Idiom idiom = null;
+            if (i + 2 <= commands.size()) {
+                if (MULTIPLY.matches(commands, i)) {
+                    idiom = MULTIPLY;
+                } else if (DIVIDE.matches(commands, i)) {
+                    idiom = DIVIDE;
+                }
+            }
+            if (idiom == null) {
+                result.add(commands.get(i));
+                i++;
+            } else {
+                result.add(VMCommand.fused(idiom, commands.subList(i, i + 2)));
+                changes++;
+                i += 2;
+            }
+        }
+        return i;
+    }
+    @Override
+    public int changes() {
+        return changes;
+    }
+    private static boolean isCall(VMCommand command, String function) {
+        return command.getType().equals("C_CALL") && command.getArg1().equals(function) && command.getArg2() == 2;
+    }
+
+    /**
+     * push constant k / call Math.multiply 2, emitted as shifts and adds.
+     */
+    static class MultiplyByConstant implements Idiom {
+        @Override
+        public String name() {
+            return "multiply-by-constant";
+        }
+        @Override
+        public int length() {
+            return 2;
+        }
+        @Override
+        public boolean matches(List<VMCommand> commands, int start) {
+            return commands.get(start).is("C_PUSH", "constant") && isCall(commands.get(start + 1), "Math.multiply");
+        }
+        @Override
+        public void emit(CodeWriter codeWriter, List<VMCommand> parts) throws IOException {
+            codeWriter.writeMultiplyByConstant(parts.get(0).getArg2());
+        }
+    }
+
+    /**
+     * push constant 2^n / call Math.divide 2, emitted as bit extraction with the sign put back.
+     */
+    static class DivideByPowerOfTwo implements Idiom {
+        @Override
+        public String name() {
+            return "divide-by-power-of-two";
+        }
+        @Override
+        public int length() {
+            return 2;
+        }
+        @Override
+        public boolean matches(List<VMCommand> commands, int start) {
+            VMCommand push = commands.get(start);
+            return push.is("C_PUSH", "constant") && push.getArg2() > 0 && Integer.bitCount(push.getArg2()) == 1
+                    && isCall(commands.get(start + 1), "Math.divide");
+        }
+        @Override
+        public void emit(CodeWriter codeWriter, List<VMCommand> parts) throws IOException {
+            codeWriter.writeDivideByPowerOfTwo(Integer.numberOfTrailingZeros(parts.get(0).getArg2()));
+        }
+    }
+}
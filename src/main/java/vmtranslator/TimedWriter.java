@@ -0,0 +1,47 @@
+package vmtranslator;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+/**
+ * Sits right above the output file and records how long the actual writes take and how many characters reach it.
+ * The generated assembly is plain ASCII, so characters and bytes are the same count.
+ */
+class TimedWriter extends FilterWriter {
+    private final TranslationStats stats;
+
+    TimedWriter(Writer out, TranslationStats stats) {
+        super(out);
+        this.stats = stats;
+    }
+    @Override
+    public void write(int c) throws IOException {
+        long start = System.nanoTime();
+        out.write(c);
+        stats.addWrite(System.nanoTime() - start, 1);
+    }
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        out.write(buffer, offset, length);
+        stats.addWrite(System.nanoTime() - start, length);
+    }
+    @Override
+    public void write(String text, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        out.write(text, offset, length);
+        stats.addWrite(System.nanoTime() - start, length);
+    }
+    @Override
+    public void flush() throws IOException {
+        long start = System.nanoTime();
+        out.flush();
+        stats.addWrite(System.nanoTime() - start, 0);
+    }
+    @Override
+    public void close() throws IOException {
+        long start = System.nanoTime();
+        out.close();
+        stats.addWrite(System.nanoTime() - start, 0);
+    }
+}
@@ -0,0 +1,272 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+/**
+ * Collects the metrics of one translation run: wall time per phase, commands, bytes written, files and peak heap.
+ * Every timed phase is also reported as a JFR event, so a flight recording shows where the translation time goes.
+ * The clock is only read when the metrics were asked for or the event is recorded.
+ * The pipelined translator adds to it from several threads, so the updates are synchronized.
+ */
+public class TranslationStats {
+    /**
+     * The phases of the translation.
+     */
+    public enum Phase { READ, PARSE, CODEGEN, WRITE }
+
+    private final Map<Phase, Long> phaseNanos = new EnumMap<>(Phase.class);
+    private final List<FileStats> files = new ArrayList<>();
+    private final Map<String, FileEvent> fileEvents = new HashMap<>(); //Begun at the first phase of the file.
+    private final boolean timed;
+    private final long startNanos;
+    private long totalNanos;
+    private long commands;
+    private long bytesWritten;
+    private long peakHeap;
+    /**
+     * Starts the clock and resets the heap peaks, so the peak belongs to this run.
+     *
+     * @param timed true if the metrics are printed or written, so the phases have to be timed.
+     */
+    public TranslationStats(boolean timed) {
+        this.timed = timed;
+        for (Phase phase : Phase.values()) {
+            phaseNanos.put(phase, 0L);
+        }
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+        startNanos = System.nanoTime();
+    }
+    /**
+     * @return true if the phases are timed for the metrics.
+     */
+    public boolean isTimed() {
+        return timed;
+    }
+    /**
+     * Starts timing a stretch of work of a phase. Its JFR event begins here and is committed by stop().
+     *
+     * @param phase the phase.
+     * @param fileName the file being translated.
+     * @return the running timer.
+     */
+    public PhaseTimer startPhase(Phase phase, String fileName) {
+        synchronized (this) {
+            fileEvents.computeIfAbsent(fileName, name -> {
+                FileEvent event = new FileEvent();
+                event.begin();
+                return event;
+            });
+        }
+        return new PhaseTimer(phase, fileName);
+    }
+    /**
+     * Records the time of write calls that reached the output file.
+     */
+    synchronized void addWrite(long nanos, long bytes) {
+        phaseNanos.merge(Phase.WRITE, nanos, Long::sum);
+        bytesWritten += bytes;
+    }
+    public synchronized long getPhaseNanos(Phase phase) {
+        return phaseNanos.get(phase);
+    }
+    /**
+     * Records a translated file.
+     *
+     * @param fileName the vm file name.
+     * @param commandCount the number of commands parsed from it.
+     * @param readNanos the time spent reading it.
+     * @param parseNanos the time spent parsing it.
+     * @param codegenNanos the time spent generating its code.
+     */
+    public synchronized void addFile(String fileName, int commandCount, long readNanos, long parseNanos, long codegenNanos) {
+        files.add(new FileStats(fileName, commandCount, readNanos, parseNanos, codegenNanos));
+        commands += commandCount;
+        FileEvent event = fileEvents.remove(fileName);
+        if (event != null && event.shouldCommit()) {
+            event.file = fileName;
+            event.commands = commandCount;
+            event.commit();
+        }
+    }
+    /**
+     * Stops the clock and samples the heap peak. Called once the output file is closed.
+     */
+    public synchronized void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        peakHeap = peak;
+    }
+    public long getCommands() {
+        return commands;
+    }
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+    public List<FileStats> getFiles() {
+        return files;
+    }
+    /**
+     * @return the translated commands per second of total wall time.
+     */
+    public double getCommandsPerSecond() {
+        return totalNanos == 0 ? 0 : commands * 1e9 / totalNanos;
+    }
+    /**
+     * Prints a human readable summary, with one line per file when there are several.
+     *
+     * @param out the stream to print to.
+     */
+    public void printSummary(PrintStream out) {
+        out.println("Translation stats:");
+        out.printf("  total     %10.3f ms%n", totalNanos / 1e6);
+        for (Phase phase : Phase.values()) {
+            out.printf("  %-9s %10.3f ms%n", phase.name().toLowerCase(), phaseNanos.get(phase) / 1e6);
+        }
+        out.printf("  files     %10d%n", files.size());
+        out.printf("  commands  %10d (%.0f/s)%n", commands, getCommandsPerSecond());
+        out.printf("  bytes     %10d%n", bytesWritten);
+        out.printf("  peak heap %10d KB%n", peakHeap / 1024);
+        if (files.size() > 1) {
+            for (FileStats file : files) {
+                out.printf("  %-20s %6d commands, read %.3f ms, parse %.3f ms, codegen %.3f ms%n", file.name(),
+                        file.commands(), file.readNanos() / 1e6, file.parseNanos() / 1e6, file.codegenNanos() / 1e6);
+            }
+        }
+    }
+    /**
+     * Writes the metrics as a JSON object.
+     *
+     * @param path the metrics file.
+     * @throws IOException if there is an error writing the file.
+     */
+    public void writeJson(Path path) throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"totalNanos\": ").append(totalNanos).append(",\n");
+        json.append("  \"phases\": {");
+        for (Phase phase : Phase.values()) {
+            json.append(phase.ordinal() == 0 ? "" : ", ")
+                    .append('"').append(phase.name().toLowerCase()).append("\": ").append(phaseNanos.get(phase));
+        }
+        json.append("},\n");
+        json.append("  \"commands\": ").append(commands).append(",\n");
+        json.append("  \"commandsPerSecond\": ").append(Math.round(getCommandsPerSecond())).append(",\n");
+        json.append("  \"bytesWritten\": ").append(bytesWritten).append(",\n");
+        json.append("  \"filesProcessed\": ").append(files.size()).append(",\n");
+        json.append("  \"peakHeapBytes\": ").append(peakHeap).append(",\n");
+        json.append("  \"files\": [");
+        for (int i = 0; i < files.size(); i++) {
+            FileStats file = files.get(i);
+            json.append(i == 0 ? "\n" : ",\n")
+                    .append("    {\"name\": \"").append(file.name().replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\", \"commands\": ").append(file.commands())
+                    .append(", \"readNanos\": ").append(file.readNanos())
+                    .append(", \"parseNanos\": ").append(file.parseNanos())
+                    .append(", \"codegenNanos\": ").append(file.codegenNanos()).append('}');
+        }
+        json.append(files.isEmpty() ? "]\n" : "\n  ]\n").append("}\n");
+        Files.writeString(path, json);
+    }
+
+    /**
+     * The timings of a single vm file.
+     */
+    public record FileStats(String name, int commands, long readNanos, long parseNanos, long codegenNanos) {
+    }
+
+    /**
+     * A running stretch of a phase. The JFR event spans the stretch, while the phase gets the stretch without the
+     * work of other phases nested in it.
+     */
+    public final class PhaseTimer {
+        private final Phase phase;
+        private final String fileName;
+        private final PhaseEvent event = new PhaseEvent();
+        private final boolean running;
+        private final long start;
+
+        private PhaseTimer(Phase phase, String fileName) {
+            this.phase = phase;
+            this.fileName = fileName;
+            event.begin();
+            running = timed || event.isEnabled();
+            start = running ? System.nanoTime() : 0;
+        }
+        /**
+         * Stops the timer, adds the time to the phase and commits the JFR event.
+         *
+         * @return the elapsed time in nanoseconds, 0 if the phase is not timed.
+         */
+        public long stop() {
+            return stop(0);
+        }
+        /**
+         * Stops the timer, like stop(), but leaves out the time of nested work that is counted in another phase
+         * (e.g., the writes that reach the file during the code generation).
+         *
+         * @param nestedNanos the time of the nested work.
+         * @return the time of this phase in nanoseconds, 0 if the phase is not timed.
+         */
+        public long stop(long nestedNanos) {
+            if (!running) {
+                return 0;
+            }
+            long nanos = System.nanoTime() - start - nestedNanos;
+            event.end();
+            synchronized (TranslationStats.this) {
+                phaseNanos.merge(phase, nanos, Long::sum);
+            }
+            if (event.shouldCommit()) {
+                event.phase = phase.name().toLowerCase();
+                event.file = fileName;
+                event.nanos = nanos;
+                event.commit();
+            }
+            return nanos;
+        }
+    }
+
+    @Name("vmtranslator.Phase")
+    @Label("Translation Phase")
+    @Category("VM Translator")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("File")
+        String file;
+        @Label("Phase Time (ns)")
+        long nanos; //The duration without nested work of other phases.
+    }
+
+    @Name("vmtranslator.File")
+    @Label("File Translated")
+    @Category("VM Translator")
+    static class FileEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Commands")
+        int commands;
+    }
+}
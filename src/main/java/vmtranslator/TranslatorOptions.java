@@ -0,0 +1,172 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+/**
+ * Holds the command line options of the translator.
+ * Flags come before the input, for example: {@code --fuse Prog.vm}.
+ */
+public class TranslatorOptions {
+    static final String USAGE = "Usage: VMTranslator [-O0|-O1|-O2|-Os] [--pass <name>] [--no-pass <name>] [--profile <file> [--rom-budget <words>]] [--fuse] [--stats] [--metrics <file.json>] [--source-map] [--compact] [--label-map] [--pipeline] <file.vm | directory>"
+            + "\n-O2 replaces the calls of Math.multiply by a constant and of Math.divide by a power of two,"
+            + " even if the program brings its own Math class.";
+    private static final int ROM_SIZE = 32768; //The Hack ROM, the budget when --rom-budget is not given.
+    private String inputPath;
+    private String optimizationLevel = "O0";
+    private final Map<String, Boolean> passSwitches = new LinkedHashMap<>(); //Applied after the level, in order.
+    private String profilePath;
+    private int romBudget; //0 when not given.
+    private boolean printStats;
+    private boolean printIdiomHits;
+    private String metricsPath;
+    private boolean sourceMap;
+    private boolean compact;
+    private boolean labelMap;
+    private boolean pipelined;
+    /**
+     * Parses the command line arguments.
+     *
+     * @param args the arguments given to main.
+     * @return the parsed options.
+     * @throws IllegalArgumentException if a flag is unknown or the input is missing.
+     */
+    public static TranslatorOptions parse(String[] args) {
+        TranslatorOptions options = new TranslatorOptions();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("-")) {
+                if (options.inputPath != null) {
+                    throw new IllegalArgumentException("Please provide exactly one .vm file or a directory to assemble");
+                }
+                options.inputPath = arg;
+                continue;
+            }
+            switch (arg) {
+                case "-O0", "-O1", "-O2", "-Os" -> options.optimizationLevel = arg.substring(1);
+                case "--pass" -> options.switchPass(value(args, ++i, arg), true);
+                case "--no-pass" -> options.switchPass(value(args, ++i, arg), false);
+                case "--fuse" -> {
+                    options.switchPass("fuse", true);
+                    options.printIdiomHits = true;
+                }
+                case "--profile" -> options.profilePath = value(args, ++i, arg);
+                case "--rom-budget" -> {
+                    try {
+                        options.romBudget = Integer.parseInt(value(args, i + 1, arg));
+                    } catch (NumberFormatException e) {
+                        options.romBudget = 0;
+                    }
+                    if (options.romBudget <= 0) {
+                        throw new IllegalArgumentException("Invalid value for --rom-budget: " + args[i + 1]);
+                    }
+                    i++;
+                }
+                case "--stats" -> options.printStats = true;
+                case "--metrics" -> options.metricsPath = value(args, ++i, arg);
+                case "--source-map" -> options.sourceMap = true;
+                case "--compact" -> options.compact = true;
+                case "--label-map" -> options.labelMap = true;
+                case "--pipeline" -> options.pipelined = true;
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (options.labelMap && !options.compact) {
+            throw new IllegalArgumentException("--label-map needs --compact");
+        }
+        if (options.profilePath != null && options.pipelined) {
+            throw new IllegalArgumentException("--profile needs the whole program at once, it cannot be used with --pipeline");
+        }
+        if (options.romBudget != 0 && options.profilePath == null) {
+            throw new IllegalArgumentException("--rom-budget needs --profile");
+        }
+        if (options.inputPath == null) {
+            throw new IllegalArgumentException("Please provide exactly one .vm file or a directory to assemble");
+        }
+        return options;
+    }
+    /**
+     * Records a --pass or --no-pass switch, the last one given for a pass wins.
+     */
+    private void switchPass(String name, boolean enabled) {
+        if (!PassManager.isKnownPass(name)) {
+            throw new IllegalArgumentException("Unknown pass: " + name);
+        }
+        passSwitches.remove(name);
+        passSwitches.put(name, enabled);
+    }
+    /**
+     * Returns the value that follows a flag.
+     */
+    private static String value(String[] args, int i, String flag) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + flag);
+        }
+        return args[i];
+    }
+    public String getInputPath() {
+        return inputPath;
+    }
+    /**
+     * Creates the pass manager of the level, with the --pass and --no-pass switches applied.
+     * With a profile, the pgo pass takes over the choice between inline and shared calls from the shared-frames pass.
+     *
+     * @return the pass manager.
+     * @throws IOException if the profile cannot be read.
+     */
+    public PassManager newPassManager() throws IOException {
+        PassManager passes = PassManager.forLevel(optimizationLevel);
+        for (Map.Entry<String, Boolean> entry : passSwitches.entrySet()) {
+            passes.setEnabled(entry.getKey(), entry.getValue());
+        }
+        if (profilePath != null) {
+            passes.registerAfter("strength-reduce", new ProfilePass(Profile.load(profilePath),
+                    romBudget == 0 ? ROM_SIZE : romBudget));
+            passes.setEnabled("pgo", true);
+            passes.setEnabled("shared-frames", false);
+        }
+        return passes;
+    }
+    /**
+     * @return true if the hit count of every idiom should be printed (--fuse), --stats prints them too.
+     */
+    public boolean isPrintIdiomHits() {
+        return printIdiomHits;
+    }
+    /**
+     * @return true if a summary of the translation metrics should be printed.
+     */
+    public boolean isPrintStats() {
+        return printStats;
+    }
+    /**
+     * @return the path of the JSON metrics file, or null if none was asked for.
+     */
+    public String getMetricsPath() {
+        return metricsPath;
+    }
+    /**
+     * @return true if a VM-to-ROM source map should be written next to the '.asm' file.
+     */
+    public boolean isSourceMap() {
+        return sourceMap;
+    }
+    /**
+     * @return true if the output should have no comments and short label names.
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+    /**
+     * @return true if the short label names should be mapped back to the readable ones in a side file.
+     */
+    public boolean isLabelMap() {
+        return labelMap;
+    }
+    /**
+     * @return true if reading, parsing, code generation and writing should run as a pipeline of threads.
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+}
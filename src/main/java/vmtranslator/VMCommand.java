@@ -0,0 +1,119 @@
+package vmtranslator;
+
+import java.util.List;
+/**
+ * A single parsed VM command (its type and arguments), as produced by the Parser.
+ * A fused command (C_FUSED) stands for a short run of commands that an Idiom emits as one hand-tuned sequence.
+ */
+public class VMCommand {
+    private final String type;
+    private final String arg1;
+    private final int arg2;
+    private final Idiom idiom;
+    private final List<VMCommand> parts;
+    private final String fileName;
+    private final int lineNumber;
+    /**
+     * Creates a plain VM command.
+     *
+     * @param type the command type (e.g., "C_PUSH", "C_ARITHMETIC").
+     * @param arg1 the first argument, or the command itself for C_ARITHMETIC, null for C_RETURN.
+     * @param arg2 the second argument, 0 when the command has none.
+     */
+    public VMCommand(String type, String arg1, int arg2) {
+        this(type, arg1, arg2, null, 0);
+    }
+    /**
+     * Creates a plain VM command that remembers where it came from.
+     *
+     * @param type the command type (e.g., "C_PUSH", "C_ARITHMETIC").
+     * @param arg1 the first argument, or the command itself for C_ARITHMETIC, null for C_RETURN.
+     * @param arg2 the second argument, 0 when the command has none.
+     * @param fileName the .vm file name, or null if unknown.
+     * @param lineNumber the line in the .vm file (1 based), 0 if unknown.
+     */
+    public VMCommand(String type, String arg1, int arg2, String fileName, int lineNumber) {
+        this(type, arg1, arg2, null, List.of(), fileName, lineNumber);
+    }
+    private VMCommand(String type, String arg1, int arg2, Idiom idiom, List<VMCommand> parts, String fileName, int lineNumber) {
+        this.type = type;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+        this.idiom = idiom;
+        this.parts = parts;
+        this.fileName = fileName;
+        this.lineNumber = lineNumber;
+    }
+    /**
+     * Creates a fused command that replaces the given run of commands.
+     *
+     * @param idiom the idiom that matched the run and knows how to emit it.
+     * @param parts the original commands, in order.
+     * @return the fused command.
+     */
+    public static VMCommand fused(Idiom idiom, List<VMCommand> parts) {
+        VMCommand first = parts.get(0);
+        return new VMCommand("C_FUSED", idiom.name(), 0, idiom, List.copyOf(parts), first.fileName, first.lineNumber);
+    }
+    /**
+     * Returns the same command with another type, for passes that pick a different way to emit it
+     * (e.g., C_CALL becomes C_CALL_SHARED).
+     *
+     * @param newType the new command type.
+     * @return the new command.
+     */
+    public VMCommand withType(String newType) {
+        return new VMCommand(newType, arg1, arg2, idiom, parts, fileName, lineNumber);
+    }
+    public String getType() {
+        return type;
+    }
+    public String getArg1() {
+        return arg1;
+    }
+    public int getArg2() {
+        return arg2;
+    }
+    public Idiom getIdiom() {
+        return idiom;
+    }
+    public List<VMCommand> getParts() {
+        return parts;
+    }
+    public String getFileName() {
+        return fileName;
+    }
+    public int getLineNumber() {
+        return lineNumber;
+    }
+    /**
+     * Checks if this is a push/pop of the given segment.
+     *
+     * @param commandType "C_PUSH" or "C_POP".
+     * @param segment the VM segment name.
+     * @return true/false.
+     */
+    public boolean is(String commandType, String segment) {
+        return type.equals(commandType) && segment.equals(arg1);
+    }
+    /**
+     * Returns the command in its VM source form (e.g., "push local 0").
+     */
+    @Override
+    public String toString() {
+        return switch (type) {
+            case "C_ARITHMETIC" -> arg1;
+            case "C_PUSH" -> "push " + arg1 + " " + arg2;
+            case "C_POP" -> "pop " + arg1 + " " + arg2;
+            case "C_LABEL" -> "label " + arg1;
+            case "C_GOTO" -> "goto " + arg1;
+            case "C_IF" -> "if-goto " + arg1;
+            case "C_IF_ZERO" -> "if-zero-goto " + arg1;
+            case "C_FUNCTION" -> "function " + arg1 + " " + arg2;
+            case "C_CALL", "C_CALL_SHARED" -> "call " + arg1 + " " + arg2;
+            case "C_RETURN", "C_RETURN_SHARED" -> "return";
+            case "C_FUSED" -> String.join(" / ", parts.stream().map(VMCommand::toString).toList());
+            default -> type + " " + arg1 + " " + arg2;
+        };
+    }
+}
@@ -0,0 +1,543 @@
+package vmtranslator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+/**
+ * Runs parsed VM programs directly, without translating and assembling them, for quick functional checks and as a
+ * reference for the translator's output.
+ * The commands are decoded once into an int array (an opcode and two operands per command) with the label, function
+ * and static addresses resolved, and run by one loop over a switch on the opcode, which the JIT turns into a jump
+ * table (Java has no computed goto for real threaded code).
+ * The RAM is the Hack RAM: SP, LCL, ARG, THIS and THAT at 0-4, temp at 5-12, the statics from 16 in the order they
+ * first appear (as the Hack assembler assigns them), the screen at 16384 and the keyboard at 24576.
+ */
+public class VMInterpreter {
+    //Opcodes.
+    private static final int PUSH_CONSTANT = 0;
+    private static final int PUSH_SEGMENT = 1; //local, argument, this, that: a = pointer address, b = index.
+    private static final int PUSH_FIXED = 2; //temp, pointer, static: a = address.
+    private static final int POP_SEGMENT = 3;
+    private static final int POP_FIXED = 4;
+    private static final int ADD = 5;
+    private static final int SUB = 6;
+    private static final int NEG = 7;
+    private static final int EQ = 8;
+    private static final int GT = 9;
+    private static final int LT = 10;
+    private static final int AND = 11;
+    private static final int OR = 12;
+    private static final int NOT = 13;
+    private static final int GOTO = 14; //a = target.
+    private static final int IF_GOTO = 15;
+    private static final int FUNCTION = 16; //a = number of locals.
+    private static final int CALL = 17; //a = target, b = number of arguments.
+    private static final int RETURN = 18;
+    private static final int HALT = 19;
+
+    private static final int KBD = 24576;
+    private static final int STATIC_BASE = 16;
+    private static final int STATIC_END = 255;
+
+    /**
+     * Why run() stopped.
+     */
+    public enum Status {
+        /** The program reached its end, or a goto to itself (the usual end loop). */
+        HALTED,
+        /** The instruction budget ran out first. */
+        BUDGET_EXHAUSTED
+    }
+
+    private final short[] ram = new short[32768];
+    private final int[] code; //Three ints per command: opcode, a, b.
+    private final int[] owner; //The function each command belongs to, an index into functionNames.
+    private final List<String> functionNames = new ArrayList<>();
+    private final Map<String, Integer> statics = new LinkedHashMap<>(); //FileName.index to its RAM address.
+    private final VMCommand[] sites; //The command of each CALL, GOTO and IF_GOTO for the profile, null elsewhere.
+    private long[] counts; //How many times each command ran, null when not counting.
+    private int pc;
+    private long steps;
+    /**
+     * Decodes the commands of a program.
+     *
+     * @param commands the parsed commands of all the files, in order. Each command should carry its file name, for
+     *                 the statics.
+     * @param bootstrap true to start as the translator's bootstrap does: SP = 256, then call Sys.init.
+     * @throws IllegalArgumentException if a command, label or function cannot be resolved.
+     */
+    public VMInterpreter(List<VMCommand> commands, boolean bootstrap) {
+        functionNames.add("-"); //The code outside any function.
+        Map<String, Integer> labels = new HashMap<>();
+        Map<String, Integer> functions = new HashMap<>();
+        //First pass: where every label and function starts. Labels take no command of their own.
+        int index = bootstrap ? 2 : 0;
+        String currentFunction = "";
+        for (VMCommand command : commands) {
+            switch (command.getType()) {
+                case "C_LABEL" -> labels.put(currentFunction + "$" + command.getArg1(), index);
+                case "C_FUNCTION" -> {
+                    currentFunction = command.getArg1();
+                    if (functions.putIfAbsent(currentFunction, index) != null) {
+                        throw new IllegalArgumentException("Duplicate function: " + currentFunction);
+                    }
+                    functionNames.add(currentFunction);
+                    index++;
+                }
+                default -> index++;
+            }
+        }
+        code = new int[index * 3];
+        owner = new int[index];
+        sites = new VMCommand[index];
+        //Second pass: encoding.
+        int at = 0;
+        if (bootstrap) {
+            ram[0] = 256;
+            at = encode(at, CALL, resolve(functions, "Sys.init", "function"), 0);
+            at = encode(at, HALT, 0, 0);
+        }
+        currentFunction = "";
+        int currentOwner = 0;
+        for (VMCommand command : commands) {
+            String arg1 = command.getArg1();
+            int arg2 = command.getArg2();
+            if (command.getType().equals("C_FUNCTION")) {
+                currentFunction = arg1;
+                currentOwner = functionNames.indexOf(arg1);
+            }
+            if (!command.getType().equals("C_LABEL")) {
+                owner[at / 3] = currentOwner;
+            }
+            switch (command.getType()) {
+                case "C_ARITHMETIC" -> at = encode(at, arithmetic(arg1), 0, 0);
+                case "C_PUSH", "C_POP" -> {
+                    boolean push = command.getType().equals("C_PUSH");
+                    switch (arg1) {
+                        case "constant" -> {
+                            if (!push) {
+                                throw new IllegalArgumentException("Cannot pop into constant: " + command);
+                            }
+                            at = encode(at, PUSH_CONSTANT, arg2, 0);
+                        }
+                        case "local", "argument", "this", "that" ->
+                                at = encode(at, push ? PUSH_SEGMENT : POP_SEGMENT, pointer(arg1), arg2);
+                        case "temp", "pointer", "static" -> {
+                            int address = switch (arg1) {
+                                case "temp" -> 5 + arg2;
+                                case "pointer" -> 3 + arg2;
+                                default -> staticAddress(command);
+                            };
+                            at = encode(at, push ? PUSH_FIXED : POP_FIXED, address, 0);
+                        }
+                        default -> throw new IllegalArgumentException("Invalid segment: " + command);
+                    }
+                }
+                case "C_LABEL" -> {
+                }
+                case "C_GOTO" -> {
+                    sites[at / 3] = command;
+                    at = encode(at, GOTO, resolve(labels, currentFunction + "$" + arg1, "label"), 0);
+                }
+                case "C_IF" -> {
+                    sites[at / 3] = command;
+                    at = encode(at, IF_GOTO, resolve(labels, currentFunction + "$" + arg1, "label"), 0);
+                }
+                case "C_FUNCTION" -> at = encode(at, FUNCTION, arg2, 0);
+                case "C_CALL" -> {
+                    sites[at / 3] = command;
+                    at = encode(at, CALL, resolve(functions, arg1, "function"), arg2);
+                }
+                case "C_RETURN" -> at = encode(at, RETURN, 0, 0);
+                default -> throw new IllegalArgumentException("The interpreter cannot run: " + command);
+            }
+        }
+    }
+    /**
+     * Parses and decodes vm files.
+     *
+     * @param vmFiles the files of the program, in order.
+     * @param bootstrap true to start by calling Sys.init.
+     * @return the interpreter, ready to run.
+     * @throws IOException if there is an error reading a file.
+     */
+    public static VMInterpreter load(List<File> vmFiles, boolean bootstrap) throws IOException {
+        List<VMCommand> commands = new ArrayList<>();
+        for (File vmFile : vmFiles) {
+            commands.addAll(VMTranslator.readCommands(vmFile));
+        }
+        return new VMInterpreter(commands, bootstrap);
+    }
+    private int encode(int at, int opcode, int a, int b) {
+        code[at] = opcode;
+        code[at + 1] = a;
+        code[at + 2] = b;
+        return at + 3;
+    }
+    private static int arithmetic(String command) {
+        return switch (command) {
+            case "add" -> ADD;
+            case "sub" -> SUB;
+            case "neg" -> NEG;
+            case "eq" -> EQ;
+            case "gt" -> GT;
+            case "lt" -> LT;
+            case "and" -> AND;
+            case "or" -> OR;
+            case "not" -> NOT;
+            default -> throw new IllegalArgumentException("The arithmetic command is not supported: " + command);
+        };
+    }
+    private static int pointer(String segment) {
+        return switch (segment) {
+            case "local" -> 1;
+            case "argument" -> 2;
+            case "this" -> 3;
+            default -> 4;
+        };
+    }
+    private static int resolve(Map<String, Integer> targets, String name, String kind) {
+        Integer target = targets.get(name);
+        if (target == null) {
+            throw new IllegalArgumentException("Unknown " + kind + ": " + name);
+        }
+        return target;
+    }
+    /**
+     * Returns the address of FileName.index, giving the next free one on first use.
+     */
+    private int staticAddress(VMCommand command) {
+        String fileName = command.getFileName() == null ? "" : command.getFileName().replace(".vm", "");
+        String symbol = fileName + "." + command.getArg2();
+        Integer address = statics.get(symbol);
+        if (address == null) {
+            address = STATIC_BASE + statics.size();
+            if (address > STATIC_END) {
+                throw new IllegalArgumentException("Too many static variables at " + symbol);
+            }
+            statics.put(symbol, address);
+        }
+        return address;
+    }
+    /**
+     * Turns counting on or off: how many times each command runs, for the per-function counts and the profile.
+     * It costs a little on every command. Turning it on again keeps the counts so far.
+     *
+     * @param count true to count.
+     */
+    public void setCounting(boolean count) {
+        if (count && counts == null) {
+            counts = new long[owner.length];
+        } else if (!count) {
+            counts = null;
+        }
+    }
+    /**
+     * Runs the program until it halts or the budget runs out. A later call continues where this one stopped.
+     *
+     * @param budget the maximum number of commands to run, 0 for no limit.
+     * @return why it stopped.
+     * @throws IllegalStateException if the program reads or writes outside the Hack memory.
+     */
+    public Status run(long budget) {
+        final int[] code = this.code;
+        final short[] ram = this.ram;
+        final int length = owner.length;
+        final long[] counts = this.counts;
+        long limit = budget > 0 ? steps + budget : Long.MAX_VALUE;
+        int pc = this.pc;
+        long steps = this.steps;
+        try {
+            while (true) {
+                if (pc >= length) {
+                    return Status.HALTED;
+                }
+                if (steps >= limit) {
+                    return Status.BUDGET_EXHAUSTED;
+                }
+                if (counts != null) {
+                    counts[pc]++;
+                }
+                steps++;
+                int at = pc * 3;
+                int a = code[at + 1];
+                switch (code[at]) {
+                    case PUSH_CONSTANT -> {
+                        push(a);
+                        pc++;
+                    }
+                    case PUSH_SEGMENT -> {
+                        push(ram[address(ram[a] + code[at + 2])]);
+                        pc++;
+                    }
+                    case PUSH_FIXED -> {
+                        push(ram[a]);
+                        pc++;
+                    }
+                    case POP_SEGMENT -> {
+                        int target = ram[a] + code[at + 2];
+                        store(target, pop());
+                        pc++;
+                    }
+                    case POP_FIXED -> {
+                        ram[a] = pop();
+                        pc++;
+                    }
+                    case ADD -> {
+                        short y = pop();
+                        top((short) (top() + y));
+                        pc++;
+                    }
+                    case SUB -> {
+                        short y = pop();
+                        top((short) (top() - y));
+                        pc++;
+                    }
+                    case NEG -> {
+                        top((short) -top());
+                        pc++;
+                    }
+                    //Compared as signed 16 bit values, as the VM specifies.
+                    case EQ -> {
+                        short y = pop();
+                        top(top() == y ? -1 : 0);
+                        pc++;
+                    }
+                    case GT -> {
+                        short y = pop();
+                        top(top() > y ? -1 : 0);
+                        pc++;
+                    }
+                    case LT -> {
+                        short y = pop();
+                        top(top() < y ? -1 : 0);
+                        pc++;
+                    }
+                    case AND -> {
+                        short y = pop();
+                        top(top() & y);
+                        pc++;
+                    }
+                    case OR -> {
+                        short y = pop();
+                        top(top() | y);
+                        pc++;
+                    }
+                    case NOT -> {
+                        top(~top());
+                        pc++;
+                    }
+                    case GOTO -> {
+                        if (a == pc) {
+                            return Status.HALTED; //An end loop: label END, goto END.
+                        }
+                        pc = a;
+                    }
+                    case IF_GOTO -> pc = pop() != 0 ? a : pc + 1;
+                    case FUNCTION -> {
+                        for (int i = 0; i < a; i++) {
+                            push(0);
+                        }
+                        pc++;
+                    }
+                    case CALL -> {
+                        int nArgs = code[at + 2];
+                        push(pc + 1); //The return address.
+                        push(ram[1]);
+                        push(ram[2]);
+                        push(ram[3]);
+                        push(ram[4]);
+                        ram[2] = (short) (ram[0] - 5 - nArgs); //ARG = SP - 5 - nArgs.
+                        ram[1] = ram[0]; //LCL = SP.
+                        pc = a;
+                    }
+                    case RETURN -> {
+                        int frame = ram[1];
+                        int returnAddress = ram[address(frame - 5)] & 0xFFFF;
+                        ram[address(ram[2])] = pop(); //*ARG = pop().
+                        ram[0] = (short) (ram[2] + 1);
+                        ram[4] = ram[address(frame - 1)];
+                        ram[3] = ram[address(frame - 2)];
+                        ram[2] = ram[address(frame - 3)];
+                        ram[1] = ram[address(frame - 4)];
+                        pc = returnAddress;
+                    }
+                    case HALT -> {
+                        return Status.HALTED;
+                    }
+                    default -> throw new IllegalStateException("Invalid opcode at " + pc);
+                }
+            }
+        } finally {
+            this.pc = pc;
+            this.steps = steps;
+        }
+    }
+    private void push(int value) {
+        int sp = ram[0];
+        store(sp, (short) value);
+        ram[0] = (short) (sp + 1);
+    }
+    private short pop() {
+        int sp = ram[0] - 1;
+        ram[0] = (short) sp;
+        return ram[address(sp)];
+    }
+    private short top() {
+        return ram[address(ram[0] - 1)];
+    }
+    private void top(int value) {
+        store(ram[0] - 1, (short) value);
+    }
+    /**
+     * Writes a RAM word. Writes to the keyboard are ignored, as in the Hack memory.
+     */
+    private void store(int address, short value) {
+        if (address(address) != KBD) {
+            ram[address] = value;
+        }
+    }
+    private static int address(int address) {
+        if (address < 0 || address > KBD) {
+            throw new IllegalStateException("Address out of the Hack memory: " + address);
+        }
+        return address;
+    }
+    /**
+     * @return the RAM, which may be changed before running (e.g., to set up the segments of a test).
+     */
+    public short[] getRam() {
+        return ram;
+    }
+    /**
+     * @return the number of commands run so far.
+     */
+    public long getSteps() {
+        return steps;
+    }
+    /**
+     * @return the RAM address of every static variable, by its symbol in the translated code (FileName.index).
+     */
+    public Map<String, Integer> getStaticAddresses() {
+        return statics;
+    }
+    /**
+     * @return the commands run by each function while counting was on (the code outside any function is "-").
+     */
+    public Map<String, Long> getFunctionSteps() {
+        long[] steps = new long[functionNames.size()];
+        for (int pc = 0; counts != null && pc < counts.length; pc++) {
+            steps[owner[pc]] += counts[pc];
+        }
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int i = 0; i < steps.length; i++) {
+            result.put(functionNames.get(i), steps[i]);
+        }
+        return result;
+    }
+    /**
+     * Returns the calls of every function and the runs of every call site, goto and if-goto, counted while counting
+     * was on.
+     *
+     * @return the profile.
+     */
+    public Profile getProfile() {
+        Profile profile = new Profile();
+        for (int pc = 0; counts != null && pc < counts.length; pc++) {
+            if (code[pc * 3] == FUNCTION) {
+                profile.addFunction(functionNames.get(owner[pc]), counts[pc]);
+            } else if (code[pc * 3] == CALL && sites[pc] != null) {
+                profile.addSite(sites[pc].getFileName(), sites[pc].getLineNumber(), counts[pc]);
+            } else if (sites[pc] != null) {
+                profile.addBranch(sites[pc].getFileName(), sites[pc].getLineNumber(), counts[pc]);
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Runs a vm file, or the vm files of a directory (with the bootstrap when there are several, as the translator
+     * does), and prints where it stopped and the stack.
+     * Usage: VMInterpreter [--budget <n>] [--count-functions] [--write-profile <file>] [--ram <address>=<value>]... <file.vm | directory>
+     */
+    public static void main(String[] args) {
+        long budget = 0;
+        boolean count = false;
+        String profileFile = null;
+        String input = null;
+        List<int[]> presets = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--budget" -> budget = Long.parseLong(args[++i]);
+                    case "--count-functions" -> count = true;
+                    case "--write-profile" -> profileFile = args[++i];
+                    case "--ram" -> {
+                        String[] preset = args[++i].split("=");
+                        presets.add(new int[]{Integer.parseInt(preset[0]), Integer.parseInt(preset[1])});
+                    }
+                    default -> {
+                        if (args[i].startsWith("-")) {
+                            throw new IllegalArgumentException("Unknown option: " + args[i]);
+                        }
+                        input = args[i];
+                    }
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            input = null; //A bad or missing value.
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            input = null;
+        }
+        if (input == null) {
+            System.out.println("Usage: VMInterpreter [--budget <n>] [--count-functions] [--write-profile <file>] [--ram <address>=<value>]... <file.vm | directory>");
+            return;
+        }
+        File path = new File(input);
+        List<File> vmFiles;
+        if (path.isDirectory()) {
+            File[] files = path.listFiles((dir, name) -> name.endsWith(".vm"));
+            vmFiles = files == null ? List.of() : List.of(files);
+        } else {
+            vmFiles = List.of(path);
+        }
+        if (vmFiles.isEmpty()) {
+            System.out.println("No vm files found in the directory " + path.getAbsolutePath());
+            return;
+        }
+        try {
+            VMInterpreter interpreter = load(vmFiles, vmFiles.size() > 1);
+            for (int[] preset : presets) {
+                interpreter.getRam()[preset[0]] = (short) preset[1];
+            }
+            interpreter.setCounting(count || profileFile != null);
+            long start = System.nanoTime();
+            Status status = interpreter.run(budget);
+            long nanos = System.nanoTime() - start;
+            short[] ram = interpreter.getRam();
+            System.out.printf("%s after %d commands (%.3f ms)%n", status, interpreter.getSteps(), nanos / 1e6);
+            System.out.println("SP=" + ram[0] + " LCL=" + ram[1] + " ARG=" + ram[2] + " THIS=" + ram[3] + " THAT=" + ram[4]);
+            short[] stack = Arrays.copyOfRange(ram, 256, Math.max(256, Math.min(ram[0], 256 + 16)));
+            System.out.println("Stack from 256: " + Arrays.toString(stack));
+            Profile profile = interpreter.getProfile();
+            if (count) {
+                interpreter.getFunctionSteps().entrySet().stream()
+                        .filter(entry -> entry.getValue() > 0)
+                        .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                        .forEach(entry -> System.out.printf("  %-30s %10d calls %12d commands%n", entry.getKey(),
+                                profile.getFunctionCalls(entry.getKey()), entry.getValue()));
+            }
+            if (profileFile != null) {
+                profile.write(profileFile);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error while running VM: " + e.getMessage());
+        }
+    }
+}
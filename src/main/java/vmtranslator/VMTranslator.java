@@ -1,18 +1,27 @@
 package vmtranslator;
 
 import  java.io.IOException;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.List;
 public class VMTranslator {
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Please provide exactly one .vm file or a directory to assemble");
+        TranslatorOptions options;
+        try {
+            options = TranslatorOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(TranslatorOptions.USAGE);
             return;
         }
-        File Path = new File(args[0]);
+        File Path = new File(options.getInputPath());
         //Checking for the different possibilities for inputs and per option - we will use the helper functions for  each scenario.
         if (Path.isFile() && Path.getName().endsWith(".vm")) {
             //One valid file option.
-            FileTranslator(Path);
+            FileTranslator(Path, options);
         } else if (Path.isDirectory()) {
             //Directory option. we will cover an edge case where the directory obtains only one vm file - then we treat it as a single file
             //for not summoning the bootstrap and getting an error.
@@ -22,9 +31,9 @@ public class VMTranslator {
             } else if (vmFiles.length == 1) {
                 //Single vm file, we should treat it as a single file even tough he is inside a folder.
                 System.out.println("Found a single vm file in the directory, treating as a single file.");
-                FileTranslator(vmFiles[0]);
+                FileTranslator(vmFiles[0], options);
             } else {
-                DirTranslator(Path);
+                DirTranslator(Path, options);
             }
         } else {
             System.out.println("Please provide a .vm file or a directory to assemble");
@@ -33,36 +42,37 @@ public class VMTranslator {
     /**
      * Takes a single vm file  and return an asm file.
      * @param vmFile as the input vm file to be translated.
+     * @param options the command line options.
      */
-        private static void FileTranslator(File vmFile) {
+        private static void FileTranslator(File vmFile, TranslatorOptions options) {
         String asmFile = vmFile.getAbsolutePath().replace(".vm", ".asm");
-        try (CodeWriter codeWriter = new CodeWriter(asmFile)) {
+        PassManager passes = newPassManager(options);
+        if (passes == null) {
+            return;
+        }
+        TranslationStats stats = new TranslationStats(options.isPrintStats() || options.getMetricsPath() != null);
+        if (options.isPipelined()) {
+            translatePipelined(List.of(vmFile), asmFile, false, options, passes, stats);
+            report(options, passes, stats);
+            return;
+        }
+        try (CodeWriter codeWriter = openWriter(asmFile, options, passes, stats)) {
             //Start by writing the bootstrap code.
             codeWriter.setFileName(vmFile.getName());
-            Parser parser = new Parser(vmFile.getAbsolutePath());
-            while (parser.hasMoreCommands()) {
-                parser.advance(); //As long as the file is not empty of commands - advance.
-                switch (parser.commandType()) {
-                    case "C_ARITHMETIC" -> codeWriter.writeArithmetic(parser.arg1());
-                    case  "C_PUSH" , "C_POP" -> codeWriter.writePushPop(parser.commandType(), parser.arg1(), parser.arg2());
-                    case "C_LABEL" -> codeWriter.Writelabel(parser.arg1());
-                    case "C_GOTO" -> codeWriter.WriteGoto(parser.arg1());
-                    case "C_IF" -> codeWriter.WriteIf(parser.arg1());
-                    case "C_FUNCTION" -> codeWriter.WriteFunction(parser.arg1(), parser.arg2());
-                    case "C_CALL" -> codeWriter.WriteCall(parser.arg1(), parser.arg2());
-                    case "C_RETURN" -> codeWriter.WriteReturn();
-                    default -> throw new IllegalStateException("Unexpected value: " + parser.commandType());
-                }
-            }
+            translate(vmFile, codeWriter, passes, stats, true);
+            codeWriter.finish();
+            writeLabelMap(codeWriter, asmFile, options);
         } catch (IOException e) {
             System.out.println("Error while assembling VM: " + e.getMessage());
         }
+        report(options, passes, stats);
     }
     /**
      * Takes all vm files within a directory and returns them as a one combined asm file.
      * @param directory is a given directory that we need to handle her vm files.
+     * @param options the command line options.
      */
-    private static void DirTranslator(File directory) {
+    private static void DirTranslator(File directory, TranslatorOptions options) {
         // Gather all .vm files in the directory
         File[] vmFiles = directory.listFiles((dir, name) -> name.endsWith(".vm"));
         if (vmFiles == null || vmFiles.length == 0) {
@@ -70,31 +80,189 @@ public class VMTranslator {
             return;
         }
         String asmFile = new File(directory, directory.getName() + ".asm").getAbsolutePath(); //Going to be the Output combined file we need.
-        try (CodeWriter codeWriter = new CodeWriter(asmFile)) {
+        PassManager passes = newPassManager(options);
+        if (passes == null) {
+            return;
+        }
+        TranslationStats stats = new TranslationStats(options.isPrintStats() || options.getMetricsPath() != null);
+        if (options.isPipelined()) {
+            translatePipelined(List.of(vmFiles), asmFile, true, options, passes, stats);
+            report(options, passes, stats);
+            return;
+        }
+        try (CodeWriter codeWriter = openWriter(asmFile, options, passes, stats)) {
             //Start by writing the bootstrap code.
             codeWriter.writeBootstrap();
-            for (File vmFile : vmFiles) {
+            for (int i = 0; i < vmFiles.length; i++) {
+                File vmFile = vmFiles[i];
                 System.out.println("Translating: " + vmFile.getName()); //For debugging purposes and for being able to see the transition process.
                 codeWriter.setFileName(vmFile.getName());
-                Parser parser = new Parser(vmFile.getAbsolutePath());
-                while (parser.hasMoreCommands()) {
-                    parser.advance(); // Advance through commands - as the single vm file scenario at main.
-                    switch (parser.commandType()) {
-                        case "C_ARITHMETIC" -> codeWriter.writeArithmetic(parser.arg1());
-                        case "C_PUSH", "C_POP" -> codeWriter.writePushPop(parser.commandType(), parser.arg1(), parser.arg2());
-                        case "C_LABEL" -> codeWriter.Writelabel(parser.arg1());
-                        case "C_GOTO" -> codeWriter.WriteGoto(parser.arg1());
-                        case "C_IF" -> codeWriter.WriteIf(parser.arg1());
-                        case "C_FUNCTION" -> codeWriter.WriteFunction(parser.arg1(), parser.arg2());
-                        case "C_CALL" -> codeWriter.WriteCall(parser.arg1(), parser.arg2());
-                        case "C_RETURN" -> codeWriter.WriteReturn();
-                        default -> throw new IllegalStateException("Unexpected command type: " + parser.commandType());
-                    }
-                }
+                translate(vmFile, codeWriter, passes, stats, i == vmFiles.length - 1);
             }
+            codeWriter.finish();
+            writeLabelMap(codeWriter, asmFile, options);
         } catch (IOException e) {
             System.out.println("Error processing directory: " + directory.getAbsolutePath());
         }
+        report(options, passes, stats);
+    }
+    /**
+     * Creates the passes that the options ask for.
+     * @param options the command line options.
+     * @return the pass manager, or null if the profile could not be read.
+     */
+    private static PassManager newPassManager(TranslatorOptions options) {
+        try {
+            return options.newPassManager();
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Error reading the profile: " + e.getMessage());
+            return null;
+        }
+    }
+    /**
+     * Opens the output asm file, with the writes timed and counted into the stats when they are timed.
+     * With a source map, the code goes through an AsmLineWriter, which turns the source markers into the map next to
+     * the asm file. Compact mode only turns the CodeWriter's comments off and mangles the labels.
+     * @param asmFile the path of the output file.
+     * @param options the command line options.
+     * @param passes the passes of the optimization level.
+     * @param stats the metrics of the run.
+     * @return the code writer.
+     * @throws IOException if the file cannot be created.
+     */
+    private static CodeWriter openWriter(String asmFile, TranslatorOptions options, PassManager passes,
+                                         TranslationStats stats) throws IOException {
+        Writer out = new FileWriter(asmFile);
+        if (stats.isTimed()) {
+            out = new TimedWriter(out, stats);
+        }
+        return newCodeWriter(new BufferedWriter(out), asmFile, options, passes);
+    }
+    /**
+     * Creates the code writer over an opened output stream, set up by the options.
+     * The assembly passes run first, so the source map sees the optimized lines.
+     * @param out the stream of the output asm file.
+     * @param asmFile the path of the output file, for the side files.
+     * @param options the command line options.
+     * @param passes the passes of the optimization level.
+     * @return the code writer.
+     * @throws IOException if a side file cannot be created.
+     */
+    private static CodeWriter newCodeWriter(Writer out, String asmFile, TranslatorOptions options, PassManager passes)
+            throws IOException {
+        if (options.isSourceMap()) {
+            out = new AsmLineWriter(out, new SourceMap(sideFile(asmFile, ".map")));
+        }
+        if (passes.hasAsmPasses()) {
+            out = new AsmPassWriter(out, passes);
+        }
+        CodeWriter codeWriter = new CodeWriter(out);
+        codeWriter.setSourceMarkers(options.isSourceMap());
+        if (options.isCompact()) {
+            codeWriter.setComments(false);
+            codeWriter.setLabelMangler(new LabelMangler());
+        }
+        return codeWriter;
+    }
+    /**
+     * Translates the files with the PipelinedTranslator, where reading, parsing, code generation and writing
+     * run on their own threads.
+     * @param vmFiles the files to translate, in order.
+     * @param asmFile the path of the output file.
+     * @param bootstrap true to start with the bootstrap code (the directory scenario).
+     * @param options the command line options.
+     * @param passes the passes of the optimization level.
+     * @param stats the metrics of the run.
+     */
+    private static void translatePipelined(List<File> vmFiles, String asmFile, boolean bootstrap, TranslatorOptions options,
+                                           PassManager passes, TranslationStats stats) {
+        PipelinedTranslator pipeline = new PipelinedTranslator(asmFile, stats);
+        try {
+            CodeWriter codeWriter = newCodeWriter(pipeline.getOutput(), asmFile, options, passes);
+            pipeline.translate(vmFiles, codeWriter, passes, bootstrap);
+            writeLabelMap(codeWriter, asmFile, options);
+        } catch (IOException e) {
+            System.out.println("Error while assembling VM: " + e.getMessage());
+        }
+    }
+    /**
+     * Returns the path of a file that goes next to the asm file (e.g., Prog.asm -> Prog.map).
+     */
+    private static String sideFile(String asmFile, String extension) {
+        return asmFile.substring(0, asmFile.length() - ".asm".length()) + extension;
+    }
+    /**
+     * Writes the label mapping file of the compact mode, once all the labels were emitted.
+     * @param codeWriter the writer of the output asm file.
+     * @param asmFile the path of the output file.
+     * @param options the command line options.
+     * @throws IOException if there is an error writing the file.
+     */
+    private static void writeLabelMap(CodeWriter codeWriter, String asmFile, TranslatorOptions options) throws IOException {
+        if (options.isLabelMap()) {
+            codeWriter.getLabelMangler().writeMapping(sideFile(asmFile, ".labels"));
+        }
+    }
+    /**
+     * Prints the idiom hits and the metrics that the options asked for, once the output is closed.
+     * @param options the command line options.
+     * @param passes the passes of the optimization level.
+     * @param stats the metrics of the run.
+     */
+    private static void report(TranslatorOptions options, PassManager passes, TranslationStats stats) {
+        stats.finish();
+        if (options.isPrintStats()) {
+            stats.printSummary(System.out);
+            passes.printStats(System.out);
+        } else if (options.isPrintIdiomHits() && passes.getFuser() != null) {
+            passes.getFuser().printStats(System.out);
+        }
+        if (options.getMetricsPath() != null) {
+            try {
+                stats.writeJson(Path.of(options.getMetricsPath()));
+            } catch (IOException e) {
+                System.out.println("Error writing metrics: " + e.getMessage());
+            }
+        }
+    }
+    /**
+     * Parses one vm file and writes its commands, the same way for the single file and the directory scenarios.
+     * @param vmFile the vm file to translate.
+     * @param codeWriter the writer of the output asm file.
+     * @param passes the VM passes to run over the commands before they are written.
+     * @param stats the metrics of the run, the file's read, parse and codegen times are added to it.
+     * @param lastFile true for the last file of the program, where a pass that needs the whole program runs (until
+     *                 then it holds the commands, so their codegen time goes to the last file).
+     * @throws IOException if there is an error reading or writing.
+     */
+    private static void translate(File vmFile, CodeWriter codeWriter, PassManager passes, TranslationStats stats,
+                                  boolean lastFile) throws IOException {
+        String name = vmFile.getName();
+        ArenaParser parser = new ArenaParser(vmFile);
+        TranslationStats.PhaseTimer timer = stats.startPhase(TranslationStats.Phase.READ, name);
+        parser.read();
+        long readNanos = timer.stop();
+        timer = stats.startPhase(TranslationStats.Phase.PARSE, name);
+        List<VMCommand> commands = parser.parseAll();
+        long parseNanos = timer.stop();
+        int commandCount = commands.size();
+        //Writes that reach the file during codegen belong to the write phase, so we take them out.
+        long writeBefore = stats.getPhaseNanos(TranslationStats.Phase.WRITE);
+        timer = stats.startPhase(TranslationStats.Phase.CODEGEN, name);
+        for (VMCommand command : passes.runVm(commands, true, lastFile)) {
+            codeWriter.writeCommand(command);
+        }
+        long codegenNanos = timer.stop(stats.getPhaseNanos(TranslationStats.Phase.WRITE) - writeBefore);
+        stats.addFile(name, commandCount, readNanos, parseNanos, codegenNanos);
+    }
+    /**
+     * Reads all the commands of a vm file.
+     * @param vmFile the vm file to parse.
+     * @return the parsed commands, in order.
+     * @throws IOException if there is an error reading the file.
+     */
+    static List<VMCommand> readCommands(File vmFile) throws IOException {
+        return new ArenaParser(vmFile).parseAll();
     }
 }
 
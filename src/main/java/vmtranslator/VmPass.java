@@ -0,0 +1,37 @@
+package vmtranslator;
+
+import java.util.List;
+/**
+ * A pass over the parsed VM commands, run before the code generation.
+ * The commands may arrive in batches (the pipelined mode), so a pass that looks ahead says how far it looks and
+ * leaves the commands it could not decide on for the next batch.
+ */
+public interface VmPass extends Pass {
+    /**
+     * The PassManager holds the commands back until it has this many (or the batch is complete) before it runs the
+     * pass, and the pass may leave fewer than this many for the next batch.
+     *
+     * @return the number of commands the pass needs to see at once, 1 if it looks at one command at a time.
+     */
+    int lookahead();
+    /**
+     * Rewrites the given commands into the result.
+     *
+     * @param commands the commands of the batch.
+     * @param result the list the rewritten commands are added to.
+     * @param complete true if no more commands of the file follow.
+     * @return the number of commands consumed, the rest are given again with the next batch.
+     */
+    int run(List<VMCommand> commands, List<VMCommand> result, boolean complete);
+    /**
+     * @return the number of rewrites done so far.
+     */
+    int changes();
+    /**
+     * @return true if the pass needs all the commands of the program in one run (e.g., to look into callees in other
+     * files), instead of file by file.
+     */
+    default boolean wholeProgram() {
+        return false;
+    }
+}
@@ -0,0 +1,179 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+/**
+ * Checks the ArenaParser against the Parser: line endings, white space and comments, the errors of bad lines, a file
+ * bigger than the arena's first buffer, and the clearing of the ParseArena's intern table.
+ * Exits with 1 if a check fails.
+ */
+public class ArenaParserTest {
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        System.out.println("Testing CRLF line endings:");
+        List<VMCommand> commands = parse("push constant 7\r\nadd\r\n\r\npop temp 0\r\n");
+        check("three commands", commands.size() == 3);
+        check("push constant 7 on line 1", describe(commands.get(0)).equals("push constant 7 @1"));
+        check("add on line 2", describe(commands.get(1)).equals("add @2"));
+        check("pop temp 0 on line 4", describe(commands.get(2)).equals("pop temp 0 @4"));
+
+        System.out.println("Testing white space and comments:");
+        commands = parse("add//x\npush\tconstant  8// c\n  // only a comment\n\tlabel LOOP \ngoto LOOP//\nreturn");
+        check("add//x is add", describe(commands.get(0)).equals("add @1"));
+        check("tabs, spaces and a glued comment", describe(commands.get(1)).equals("push constant 8 @2"));
+        check("a comment line is skipped", describe(commands.get(2)).equals("label LOOP @4"));
+        check("goto LOOP//", describe(commands.get(3)).equals("goto LOOP @5"));
+        check("return without a line end", describe(commands.get(4)).equals("return @6"));
+        check("the same commands as the Parser", sameAsParser("add//x\npush constant 8 // c\n\nreturn\n"));
+
+        System.out.println("Testing the errors of bad lines:");
+        for (String line : new String[]{"foo 1", "add 1", "push", "goto", "push constant x", "pop local",
+                "call Main.f -", "function Main.f 99999999999"}) {
+            check("'" + line + "' fails as with the Parser", sameError(line));
+        }
+
+        System.out.println("Testing a file bigger than " + ParseArena.BUFFER_SIZE + " bytes:");
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; big.length() <= 4 * ParseArena.BUFFER_SIZE; i++) {
+            big.append("push constant ").append(i % 32768).append("\r\n").append("pop static ").append(i % 200)
+                    .append(" // ").append(i).append('\n');
+        }
+        check("the same commands as the Parser", sameAsParser(big.toString()));
+        commands = parse("neg\n");
+        check("a small file after it", commands.size() == 1 && describe(commands.get(0)).equals("neg @1"));
+
+        System.out.println("Testing the intern table:");
+        ParseArena arena = new ParseArena();
+        String first = intern(arena, "Main.main");
+        check("a token is interned", intern(arena, "Main.main") == first);
+        for (int i = 1; i < ParseArena.MAX_TOKENS; i++) {
+            intern(arena, "t" + i);
+        }
+        check("kept up to MAX_TOKENS tokens", intern(arena, "Main.main") == first);
+        intern(arena, "one.more");
+        String again = intern(arena, "Main.main");
+        check("cleared when full", again != first && again.equals(first));
+        check("interned again after clearing", intern(arena, "Main.main") == again);
+
+        System.out.println(failures == 0 ? "All checks passed." : failures + " failure(s).");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+    private static void check(String name, boolean passed) {
+        System.out.println("  " + (passed ? "ok   " : "FAIL ") + name);
+        if (!passed) {
+            failures++;
+        }
+    }
+    private static String describe(VMCommand command) {
+        return command + " @" + command.getLineNumber();
+    }
+    private static String intern(ParseArena arena, String token) {
+        byte[] bytes = ("  " + token + " ").getBytes(StandardCharsets.US_ASCII);
+        return arena.intern(ByteBuffer.wrap(bytes), 2, 2 + token.length());
+    }
+    /**
+     * Parses the text as a vm file with the ArenaParser.
+     */
+    private static List<VMCommand> parse(String text) throws IOException {
+        Path file = write(text);
+        try {
+            return new ArenaParser(file.toFile()).parseAll();
+        } finally {
+            Files.delete(file);
+        }
+    }
+    /**
+     * Checks that both parsers give the same commands, on the same lines.
+     */
+    private static boolean sameAsParser(String text) throws IOException {
+        Path file = write(text);
+        try {
+            List<Integer> lines = commandLines(text); //The Parser keeps no line numbers.
+            List<String> expected = new ArrayList<>();
+            Parser parser = new Parser(file.toString());
+            while (parser.hasMoreCommands()) {
+                parser.advance();
+                if (parser.getCurrentCommand() != null) {
+                    expected.add(describe(command(parser, file, lines.get(expected.size()))));
+                }
+            }
+            parser.close();
+            List<String> actual = new ArrayList<>();
+            for (VMCommand command : new ArenaParser(file.toFile()).parseAll()) {
+                actual.add(describe(command));
+            }
+            return actual.equals(expected);
+        } finally {
+            Files.delete(file);
+        }
+    }
+    /**
+     * Checks that both parsers reject the line with the same exception and message.
+     */
+    private static boolean sameError(String line) throws IOException {
+        Path file = write(line + "\n");
+        try {
+            String expected = "no error";
+            Parser parser = new Parser(file.toString());
+            try {
+                parser.advance();
+                command(parser, file, 1);
+            } catch (RuntimeException e) {
+                expected = e.getClass().getSimpleName() + ": " + e.getMessage();
+            } finally {
+                parser.close();
+            }
+            String actual = "no error";
+            try {
+                new ArenaParser(file.toFile()).parseAll();
+            } catch (RuntimeException e) {
+                actual = e.getClass().getSimpleName() + ": " + e.getMessage();
+            }
+            System.out.println("    " + actual);
+            return actual.equals(expected) && !actual.equals("no error");
+        } finally {
+            Files.delete(file);
+        }
+    }
+    /**
+     * Builds the Parser's current command the way the ArenaParser does.
+     */
+    private static VMCommand command(Parser parser, Path file, int line) {
+        String type = parser.commandType();
+        if (type == null) {
+            throw new IllegalStateException("Command not defined: " + parser.getCurrentCommand());
+        }
+        String fileName = file.getFileName().toString();
+        return switch (type) {
+            case "C_RETURN" -> new VMCommand(type, null, 0, fileName, line);
+            case "C_PUSH", "C_POP", "C_FUNCTION", "C_CALL" ->
+                    new VMCommand(type, parser.arg1(), parser.arg2(), fileName, line);
+            default -> new VMCommand(type, parser.arg1(), 0, fileName, line);
+        };
+    }
+    /**
+     * Returns the numbers of the lines that hold a command.
+     */
+    private static List<Integer> commandLines(String text) {
+        List<Integer> lines = new ArrayList<>();
+        String[] split = text.split("\n", -1);
+        for (int i = 0; i < split.length; i++) {
+            int comment = split[i].indexOf("//");
+            if (!(comment < 0 ? split[i] : split[i].substring(0, comment)).trim().isEmpty()) {
+                lines.add(i + 1);
+            }
+        }
+        return lines;
+    }
+    private static Path write(String text) throws IOException {
+        Path file = Files.createTempFile("arena", ".vm");
+        Files.writeString(file, text);
+        return file;
+    }
+}
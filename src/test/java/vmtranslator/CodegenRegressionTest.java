@@ -0,0 +1,295 @@
+package vmtranslator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+/**
+ * Code quality regression suite: translates every program under src/test/resources/benchmarks at every optimization
+ * level, runs the asm on the HackMachine and compares the instruction count and the cycles with the checked-in
+ * baseline (benchmarks/baseline.tsv). The results are checked against the VMInterpreter too, and the output of
+ * --pipeline against the sequential output (at every level but the profiled one, which cannot be pipelined).
+ * Exits with 1 if a program got bigger or slower than the threshold allows, computes a different result, or is
+ * translated differently by --pipeline.
+ * Usage: CodegenRegressionTest [--threshold <percent>] [--update]
+ * --update rewrites the baseline with the current numbers.
+ */
+public class CodegenRegressionTest {
+    private static final Path BENCHMARKS = Path.of("src/test/resources/benchmarks");
+    private static final Path BASELINE = BENCHMARKS.resolve("baseline.tsv");
+    private static final long MAX_CYCLES = 100_000_000L;
+    private static final String[][] LEVELS = {
+            {"O0", "-O0"}, {"O1", "-O1"}, {"O2", "-O2"}, {"Os", "-Os"}, {"O2-pgo", "-O2"}
+    };
+    private static final int[] NO_RESULTS = {};
+    /**
+     * A program of the corpus: where the words it leaves on the stack start, the RAM ranges it writes its results to
+     * (first and last address of each), and the RAM its test presets (the programs without Sys.init start inside a
+     * frame). The statics are always compared.
+     */
+    private record Benchmark(String name, int stackBase, int[] results, int... presets) {
+    }
+    private static final Benchmark[] BENCHMARKS_LIST = {
+            new Benchmark("SimpleFunction", 310, NO_RESULTS, 0, 317, 1, 317, 2, 310, 3, 3000, 4, 4000, 310, 1234,
+                    311, 37, 312, 1000, 313, 305, 314, 300, 315, 3010, 316, 4010),
+            new Benchmark("NestedCall", 261, NO_RESULTS, 0, 261, 1, 261, 2, 256, 3, -3, 4, -4, 256, 1234),
+            new Benchmark("FibonacciElement", 261, NO_RESULTS),
+            new Benchmark("StaticsTest", 261, NO_RESULTS),
+            new Benchmark("Mixed", 261, new int[]{3000, 3009}),
+            new Benchmark("Hot", 261, NO_RESULTS),
+            new Benchmark("MathOps", 261, new int[]{3000, 3149}),
+    };
+
+    public static void main(String[] args) throws IOException {
+        double threshold = 2.0;
+        boolean update = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threshold" -> threshold = Double.parseDouble(args[++i]);
+                case "--update" -> update = true;
+                default -> {
+                    System.out.println("Usage: CodegenRegressionTest [--threshold <percent>] [--update]");
+                    System.exit(2);
+                }
+            }
+        }
+        Map<String, long[]> baseline = update ? new LinkedHashMap<>() : loadBaseline();
+        Map<String, long[]> current = new LinkedHashMap<>();
+        int failures = 0;
+        System.out.printf("%-18s %-7s %10s %8s %12s%n", "program", "level", "rom", "labels", "cycles");
+        for (Benchmark benchmark : BENCHMARKS_LIST) {
+            List<File> vmFiles = vmFiles(BENCHMARKS.resolve(benchmark.name()));
+            VMInterpreter oracle = VMInterpreter.load(vmFiles, vmFiles.size() > 1);
+            preset(oracle.getRam(), benchmark);
+            oracle.setCounting(true);
+            if (oracle.run(MAX_CYCLES) != VMInterpreter.Status.HALTED) {
+                System.out.println(benchmark.name() + ": the interpreter did not halt");
+                failures++;
+                continue;
+            }
+            for (String[] level : LEVELS) {
+                String key = benchmark.name() + "\t" + level[0];
+                HackMachine machine = translateAndRun(benchmark, level, oracle);
+                if (machine == null) {
+                    System.out.println(key.replace('\t', ' ') + ": no asm was written");
+                    failures++;
+                    continue;
+                }
+                long[] numbers = {machine.getInstructionCount(), machine.getLabelCount(), machine.getCycles()};
+                current.put(key, numbers);
+                System.out.printf("%-18s %-7s %10d %8d %12d%n", benchmark.name(), level[0], numbers[0], numbers[1],
+                        numbers[2]);
+                String mismatch = machine.getCycles() >= MAX_CYCLES ? "did not halt"
+                        : compareResults(machine, oracle, benchmark);
+                if (mismatch != null) {
+                    System.out.println("  FAIL: result differs from the interpreter: " + mismatch);
+                    failures++;
+                }
+                String pipelined = level[0].endsWith("-pgo") ? null : comparePipelined(benchmark, level);
+                if (pipelined != null) {
+                    System.out.println("  FAIL: --pipeline output differs from the sequential output: " + pipelined);
+                    failures++;
+                }
+                if (!update) {
+                    failures += compareWithBaseline(baseline.get(key), numbers, threshold);
+                }
+            }
+        }
+        if (update) {
+            writeBaseline(current);
+            System.out.println("Baseline written to " + BASELINE);
+        }
+        System.out.println(failures == 0 ? "All benchmarks passed." : failures + " failure(s).");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+    /**
+     * Translates a copy of the benchmark at the level and runs the asm until it halts.
+     *
+     * @return the machine after the run, or null if the translator wrote no asm file.
+     */
+    private static HackMachine translateAndRun(Benchmark benchmark, String[] level, VMInterpreter oracle)
+            throws IOException {
+        Path work = Files.createTempDirectory("bench");
+        try {
+            List<String> args = new ArrayList<>(List.of(level[1]));
+            if (level[0].endsWith("-pgo")) {
+                Path profileFile = work.resolve("profile.tsv");
+                oracle.getProfile().write(profileFile.toString());
+                args.add("--profile");
+                args.add(profileFile.toString());
+            }
+            Path asmFile = translate(benchmark, work.resolve(benchmark.name()), args);
+            if (asmFile == null) {
+                return null;
+            }
+            HackMachine machine = new HackMachine(asmFile);
+            preset(machine.getRam(), benchmark);
+            machine.run(MAX_CYCLES);
+            return machine;
+        } finally {
+            delete(work);
+        }
+    }
+    /**
+     * Translates the benchmark at the level with and without --pipeline and compares the two asm files.
+     *
+     * @return a description of the first difference, or null if there is none.
+     */
+    private static String comparePipelined(Benchmark benchmark, String[] level) throws IOException {
+        Path work = Files.createTempDirectory("bench");
+        try {
+            Path sequential = translate(benchmark, work.resolve("sequential"), List.of(level[1]));
+            Path pipelined = translate(benchmark, work.resolve("pipelined"), List.of(level[1], "--pipeline"));
+            if (sequential == null || pipelined == null) {
+                return "no asm was written" + (sequential == null ? "" : " with --pipeline");
+            }
+            List<String> expected = Files.readAllLines(sequential);
+            List<String> actual = Files.readAllLines(pipelined);
+            for (int i = 0; i < Math.max(expected.size(), actual.size()); i++) {
+                String want = i < expected.size() ? expected.get(i) : "end of file";
+                String got = i < actual.size() ? actual.get(i) : "end of file";
+                if (!want.equals(got)) {
+                    return "line " + (i + 1) + " is " + got + ", expected " + want;
+                }
+            }
+            return null;
+        } finally {
+            delete(work);
+        }
+    }
+    /**
+     * Translates a copy of the benchmark, made in the given directory, with the arguments.
+     *
+     * @return the asm file, or null if the translator wrote none.
+     */
+    private static Path translate(Benchmark benchmark, Path copy, List<String> options) throws IOException {
+        Files.createDirectory(copy);
+        for (File vmFile : vmFiles(BENCHMARKS.resolve(benchmark.name()))) {
+            Files.copy(vmFile.toPath(), copy.resolve(vmFile.getName()), StandardCopyOption.REPLACE_EXISTING);
+        }
+        List<String> args = new ArrayList<>(options);
+        args.add(copy.toString());
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); //The translator's progress lines.
+        try {
+            VMTranslator.main(args.toArray(new String[0]));
+        } finally {
+            System.setOut(out);
+        }
+        try (Stream<Path> files = Files.list(copy)) {
+            return files.filter(file -> file.toString().endsWith(".asm")).findFirst().orElse(null);
+        }
+    }
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+    private static List<File> vmFiles(Path directory) {
+        File[] files = directory.toFile().listFiles((dir, name) -> name.endsWith(".vm"));
+        if (files == null || files.length == 0) {
+            throw new IllegalStateException("No vm files in " + directory);
+        }
+        return List.of(files);
+    }
+    private static void preset(short[] ram, Benchmark benchmark) {
+        for (int i = 0; i + 1 < benchmark.presets().length; i += 2) {
+            ram[benchmark.presets()[i]] = (short) benchmark.presets()[i + 1];
+        }
+    }
+    /**
+     * Compares what a program leaves behind: the pointers and the temp segment, the statics, the result ranges of the
+     * benchmark and the words on the stack. The frame words below the stack base hold return addresses, which differ
+     * between the two. A static is compared by its symbol, since the assembler and the interpreter may give it
+     * different addresses.
+     *
+     * @return a description of the first difference, or null if there is none.
+     */
+    private static String compareResults(HackMachine machine, VMInterpreter oracle, Benchmark benchmark) {
+        short[] actual = machine.getRam();
+        short[] expected = oracle.getRam();
+        for (int address = 0; address <= 12; address++) {
+            if (actual[address] != expected[address]) {
+                return "RAM[" + address + "] = " + actual[address] + ", expected " + expected[address];
+            }
+        }
+        for (Map.Entry<String, Integer> entry : oracle.getStaticAddresses().entrySet()) {
+            Integer address = machine.getAddress(entry.getKey());
+            short value = address == null ? 0 : actual[address];
+            if (value != expected[entry.getValue()]) {
+                return entry.getKey() + " = " + value + ", expected " + expected[entry.getValue()];
+            }
+        }
+        for (int i = 0; i + 1 < benchmark.results().length; i += 2) {
+            for (int address = benchmark.results()[i]; address <= benchmark.results()[i + 1]; address++) {
+                if (actual[address] != expected[address]) {
+                    return "RAM[" + address + "] = " + actual[address] + ", expected " + expected[address];
+                }
+            }
+        }
+        for (int address = benchmark.stackBase(); address < expected[0]; address++) {
+            if (actual[address] != expected[address]) {
+                return "RAM[" + address + "] = " + actual[address] + ", expected " + expected[address];
+            }
+        }
+        return null;
+    }
+    /**
+     * Prints the change of the instruction count and the cycles from the baseline.
+     *
+     * @return the number of regressions beyond the threshold.
+     */
+    private static int compareWithBaseline(long[] expected, long[] actual, double threshold) {
+        if (expected == null) {
+            System.out.println("  FAIL: no baseline, run with --update");
+            return 1;
+        }
+        int failures = 0;
+        String[] names = {"rom", "labels", "cycles"};
+        for (int i = 0; i < names.length; i++) {
+            if (actual[i] == expected[i]) {
+                continue;
+            }
+            double change = 100.0 * (actual[i] - expected[i]) / Math.max(1, expected[i]);
+            boolean regression = i != 1 && change > threshold; //The label count is only reported.
+            System.out.printf("  %s %s: %d -> %d (%+.2f%%)%n", regression ? "FAIL" : "note", names[i], expected[i],
+                    actual[i], change);
+            if (regression) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+    private static Map<String, long[]> loadBaseline() throws IOException {
+        Map<String, long[]> baseline = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(BASELINE)) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            baseline.put(fields[0] + "\t" + fields[1], new long[]{Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                    Long.parseLong(fields[4])});
+        }
+        return baseline;
+    }
+    private static void writeBaseline(Map<String, long[]> results) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# program\tlevel\tinstructions\tlabels\tcycles");
+        for (Map.Entry<String, long[]> entry : results.entrySet()) {
+            long[] numbers = entry.getValue();
+            lines.add(entry.getKey() + "\t" + numbers[0] + "\t" + numbers[1] + "\t" + numbers[2]);
+        }
+        Files.write(BASELINE, lines);
+    }
+}
@@ -0,0 +1,188 @@
+package vmtranslator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+/**
+ * A small Hack assembler and CPU, used by the tests to run the generated .asm files.
+ */
+public class HackMachine {
+    private final short[] rom;
+    private final short[] ram = new short[32768];
+    private int pc;
+    private short a;
+    private short d;
+    private long cycles;
+    private final int labelCount;
+    private final Map<String, Integer> symbols = new HashMap<>();
+    /**
+     * Assembles the given asm file.
+     */
+    public HackMachine(Path asmFile) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(asmFile)) {
+            int comment = line.indexOf("//");
+            String clean = (comment >= 0 ? line.substring(0, comment) : line).replaceAll("\\s", "");
+            if (!clean.isEmpty()) {
+                lines.add(clean);
+            }
+        }
+        for (int i = 0; i <= 15; i++) {
+            symbols.put("R" + i, i);
+        }
+        symbols.put("SP", 0);
+        symbols.put("LCL", 1);
+        symbols.put("ARG", 2);
+        symbols.put("THIS", 3);
+        symbols.put("THAT", 4);
+        symbols.put("SCREEN", 16384);
+        symbols.put("KBD", 24576);
+        List<String> instructions = new ArrayList<>();
+        int labels = 0;
+        for (String line : lines) {
+            if (line.startsWith("(")) {
+                symbols.put(line.substring(1, line.length() - 1), instructions.size());
+                labels++;
+            } else {
+                instructions.add(line);
+            }
+        }
+        labelCount = labels;
+        rom = new short[instructions.size()];
+        int nextVariable = 16;
+        for (int i = 0; i < instructions.size(); i++) {
+            String inst = instructions.get(i);
+            if (inst.startsWith("@")) {
+                String value = inst.substring(1);
+                if (Character.isDigit(value.charAt(0))) {
+                    rom[i] = (short) Integer.parseInt(value);
+                } else {
+                    Integer address = symbols.get(value);
+                    if (address == null) {
+                        address = nextVariable++;
+                        symbols.put(value, address);
+                    }
+                    rom[i] = (short) (int) address;
+                }
+            } else {
+                rom[i] = encode(inst);
+            }
+        }
+    }
+    private static short encode(String inst) {
+        String dest = "";
+        String jump = "";
+        String comp = inst;
+        int eq = comp.indexOf('=');
+        if (eq >= 0) {
+            dest = comp.substring(0, eq);
+            comp = comp.substring(eq + 1);
+        }
+        int semi = comp.indexOf(';');
+        if (semi >= 0) {
+            jump = comp.substring(semi + 1);
+            comp = comp.substring(0, semi);
+        }
+        int aBit = comp.contains("M") ? 1 : 0;
+        String c = comp.replace('M', 'A');
+        int bits = switch (c) {
+            case "0" -> 0b101010;
+            case "1" -> 0b111111;
+            case "-1" -> 0b111010;
+            case "D" -> 0b001100;
+            case "A" -> 0b110000;
+            case "!D" -> 0b001101;
+            case "!A" -> 0b110001;
+            case "-D" -> 0b001111;
+            case "-A" -> 0b110011;
+            case "D+1", "1+D" -> 0b011111;
+            case "A+1", "1+A" -> 0b110111;
+            case "D-1" -> 0b001110;
+            case "A-1" -> 0b110010;
+            case "D+A", "A+D" -> 0b000010;
+            case "D-A" -> 0b010011;
+            case "A-D" -> 0b000111;
+            case "D&A", "A&D" -> 0b000000;
+            case "D|A", "A|D" -> 0b010101;
+            default -> throw new IllegalArgumentException("Bad comp: " + inst);
+        };
+        int destBits = (dest.contains("A") ? 4 : 0) | (dest.contains("D") ? 2 : 0) | (dest.contains("M") ? 1 : 0);
+        int jumpBits = switch (jump) {
+            case "" -> 0;
+            case "JGT" -> 1;
+            case "JEQ" -> 2;
+            case "JGE" -> 3;
+            case "JLT" -> 4;
+            case "JNE" -> 5;
+            case "JLE" -> 6;
+            case "JMP" -> 7;
+            default -> throw new IllegalArgumentException("Bad jump: " + inst);
+        };
+        return (short) (0b111 << 13 | aBit << 12 | bits << 6 | destBits << 3 | jumpBits);
+    }
+    /**
+     * @return the address of a label or variable of the asm file, or null if it has none.
+     */
+    public Integer getAddress(String symbol) {
+        return symbols.get(symbol);
+    }
+    public short[] getRam() {
+        return ram;
+    }
+    public int getInstructionCount() {
+        return rom.length;
+    }
+    public int getLabelCount() {
+        return labelCount;
+    }
+    public long getCycles() {
+        return cycles;
+    }
+    /**
+     * Runs the program for the given number of cycles, or until it jumps to itself (the usual end loop).
+     *
+     * @return true if the program reached a tight loop or ran out of ROM.
+     */
+    public boolean run(long maxCycles) {
+        while (cycles < maxCycles) {
+            if (pc < 0 || pc >= rom.length) {
+                return true;
+            }
+            int inst = rom[pc] & 0xFFFF;
+            cycles++;
+            if ((inst & 0x8000) == 0) {
+                a = (short) inst;
+                pc++;
+                continue;
+            }
+            int x = d;
+            int y = (inst & 0x1000) != 0 ? ram[a & 0x7FFF] : a;
+            int c = (inst >> 6) & 0x3F;
+            if ((c & 0b100000) != 0) x = 0;
+            if ((c & 0b010000) != 0) x = ~x;
+            if ((c & 0b001000) != 0) y = 0;
+            if ((c & 0b000100) != 0) y = ~y;
+            int out = (c & 0b000010) != 0 ? x + y : x & y;
+            if ((c & 0b000001) != 0) out = ~out;
+            short result = (short) out;
+            int address = a & 0x7FFF;
+            if ((inst & 0b001000) != 0) ram[address] = result;
+            if ((inst & 0b100000) != 0) a = result;
+            if ((inst & 0b010000) != 0) d = result;
+            boolean jump = ((inst & 4) != 0 && result < 0) || ((inst & 2) != 0 && result == 0) || ((inst & 1) != 0 && result > 0);
+            if (jump) {
+                if ((a & 0x7FFF) == pc - 1 && (inst & 7) == 7 && rom[pc - 1] == a) {
+                    return true;
+                }
+                pc = a & 0x7FFF;
+            } else {
+                pc++;
+            }
+        }
+        return false;
+    }
+}